@@ -0,0 +1,500 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* CacheVerifier: post-load check that the cache built by ItisLoader matches the sqlite source.
+
+   The taxonomic_units tree, the synonym counts and the vernacular counts are read from the
+   source in one pass each; then every tsn is checked against the cache on all cores:
+   --
+   missing         tsn in the source but not in the cache
+   extra           tsn in the cache's existence index but not in the source (or not meant to be loaded)
+   hierarchy       number of ranks above the tsn in the cached hierarchy differs from the source
+   synonyms        number of synonyms differs from the source
+   commonNames     number of common names differs from the source
+   sample          (every Nth tsn) record re-assembled from the source differs from the cached one, compared
+                   field by field on the decoded records (names, rank, parent, synonyms, common names, references...)
+   error           exception while checking
+   --
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.gc.agr.itis.itismodel.ItisRecord;
+import ca.gc.agr.itis.itismodel.TaxonomicRank;
+import ca.gc.agr.mbb.itisproxy.CachingProxyImpl;
+import ca.gc.agr.mbb.itisproxy.entities.FullRecord;
+import ca.gc.agr.mbb.itisproxy.entities.TaxRank;
+
+
+public class CacheVerifier
+{
+    public static final String MISSING = "missing";
+    public static final String EXTRA = "extra";
+    public static final String HIERARCHY = "hierarchy";
+    public static final String SYNONYMS = "synonyms";
+    public static final String COMMON_NAMES = "commonNames";
+    public static final String SAMPLE = "sample";
+    public static final String ERROR = "error";
+
+    static final String[] CATEGORIES = {MISSING, EXTRA, HIERARCHY, SYNONYMS, COMMON_NAMES, SAMPLE, ERROR};
+
+    // Re-assemble and compare one record in this many
+    public static final int DEFAULT_SAMPLE_EVERY = 100;
+    static final int MAX_EXAMPLES = 20;
+    // Nesting of the record model that field comparison descends into
+    static final int MAX_COMPARE_DEPTH = 32;
+
+    private final String url;
+    private final String cacheDir;
+    private final int sampleEvery;
+    private final int numThreads;
+
+    // From the source: all tsns, tsn -> parent tsn, and tsn -> number of synonyms / common names
+    private int[] tsns;
+    private Map<Integer, Integer> parents;
+    private Map<Integer, Integer> synonymCounts;
+    private Map<Integer, Integer> commonNameCounts;
+
+    private final Map<String, AtomicLong> failures = new LinkedHashMap<String, AtomicLong>();
+    private final Map<String, List<Integer>> examples = new HashMap<String, List<Integer>>();
+    private final AtomicLong numChecked = new AtomicLong();
+    private final AtomicLong numSampled = new AtomicLong();
+
+    // Only the tsns a filtered load was meant to load are expected in the cache
+    private LoadFilter filter = new LoadFilter();
+
+    public CacheVerifier(final String url, final String cacheDir, final int sampleEvery, final int numThreads){
+	this.url = url;
+	this.cacheDir = cacheDir;
+	this.sampleEvery = sampleEvery;
+	this.numThreads = numThreads;
+	for(String category: CATEGORIES){
+	    failures.put(category, new AtomicLong());
+	    examples.put(category, Collections.synchronizedList(new ArrayList<Integer>()));
+	}
+    }
+
+    public final void setFilter(final LoadFilter filter){
+	this.filter = filter;
+    }
+
+    public static final void usage(){
+	System.err.println("\n\tUsage: java ca.gc.agr.mbb.itisproxyloader.CacheVerifier [options] absolute_location_of_ITIS_sqlite_db path_of_cache_dir [sample_every]\n");
+	System.err.println("\tOptions: the filter the cache was loaded with, so that the tsns it left out are not reported missing");
+	ItisLoader.filterUsage();
+	System.err.println();
+	System.exit(42);
+    }
+
+    public static final void main(final String[] args){
+	LoadFilter filter = new LoadFilter();
+	List<String> positional = new ArrayList<String>();
+	for(String arg: args){
+	    if(!arg.startsWith(ItisLoader.OPTION_PREFIX)){
+		positional.add(arg);
+		continue;
+	    }
+	    int eq = arg.indexOf('=');
+	    String key = eq < 0? arg: arg.substring(0, eq);
+	    String value = eq < 0? null: arg.substring(eq + 1);
+	    if(!ItisLoader.parseFilterOption(filter, key, value)){
+		System.err.println("\n\tERROR: Unknown or incomplete option: " + arg);
+		usage();
+	    }
+	}
+	if(positional.size() < 2 || positional.size() > 3){
+	    usage();
+	}
+	int sampleEvery = DEFAULT_SAMPLE_EVERY;
+	if(positional.size() == 3){
+	    try{
+		sampleEvery = Integer.parseInt(positional.get(2));
+	    }catch(NumberFormatException e){
+		usage();
+	    }
+	}
+	try{
+	    Class.forName(ItisLoader.DRIVER_NAME);
+	    CacheVerifier verifier = new CacheVerifier("jdbc:sqlite:/" + positional.get(0), positional.get(1), sampleEvery, Runtime.getRuntime().availableProcessors());
+	    verifier.setFilter(filter);
+	    System.exit(verifier.verify()? 0: 1);
+	}catch(Throwable t){
+	    t.printStackTrace();
+	    System.exit(1);
+	}
+    }
+
+    // Returns true if there were no failures
+    public final boolean verify() throws IOException, SQLException{
+	long start = System.currentTimeMillis();
+	Connection connection = DriverManager.getConnection(url);
+	try{
+	    loadSource(connection);
+	}finally{
+	    connection.close();
+	}
+	System.out.println("CacheVerifier: " + tsns.length + " tsns in source; checking with " + numThreads + " threads");
+
+	final CachingProxyImpl pi = ItisLoader.openCache(cacheDir);
+	try{
+	    // Re-assemble sampled records the way they were loaded
+	    if(ItisLoader.synonymIndex == null){
+		ItisLoader.synonymIndex = SynonymIndex.open(new File(cacheDir));
+	    }
+	    if(ItisLoader.vernacularStore == null){
+		ItisLoader.vernacularStore = VernacularStore.open(new File(cacheDir));
+	    }
+	    checkExtra();
+
+	    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+	    try{
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for(int i=0; i<numThreads; i++){
+		    final int first = i;
+		    futures.add(executor.submit(new Runnable(){
+			    public void run(){
+				check(pi, first);
+			    }
+			}));
+		}
+		for(Future<?> f: futures){
+		    try{
+			f.get();
+		    }catch(ExecutionException e){
+			e.printStackTrace();
+			fail(ERROR, -1);
+		    }catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			fail(ERROR, -1);
+			break;
+		    }
+		}
+	    }finally{
+		executor.shutdown();
+	    }
+	}finally{
+	    // Closed before the loader checksums the cache files for the manifest
+	    ItisLoader.closeCache(pi);
+	}
+
+	report(((double)(System.currentTimeMillis() - start))/1000.0);
+	for(AtomicLong n: failures.values()){
+	    if(n.get() > 0){
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    final void loadSource(final Connection connection) throws SQLException{
+	List<Integer> tsnList = new ArrayList<Integer>();
+	parents = new HashMap<Integer, Integer>();
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery("select tsn, parent_tsn, kingdom_id, rank_id, name_usage from taxonomic_units");
+	try{
+	    while(rs.next()){
+		int tsn = rs.getInt(1);
+		parents.put(tsn, rs.getInt(2));
+		if(filter.accepts(rs.getInt(3), rs.getInt(4), rs.getString(5))){
+		    tsnList.add(tsn);
+		}
+	    }
+	}finally{
+	    ItisLoader.closeAll(statement, rs);
+	}
+	int n = 0;
+	tsns = new int[tsnList.size()];
+	for(Integer tsn: tsnList){
+	    if(!filter.hasRoots() || inRootSubtree(tsn)){
+		tsns[n++] = tsn;
+	    }
+	}
+	tsns = Arrays.copyOf(tsns, n);
+
+	// Same joins as ItisLoader.makeSynonyms
+	synonymCounts = counts(connection, "select synonym_links.tsn_accepted, count(*) from strippedauthor, synonym_links, taxonomic_units"
+			       + " where taxonomic_units.tsn=synonym_links.tsn and taxonomic_units.taxon_author_id = strippedauthor.taxon_author_id"
+			       + " group by synonym_links.tsn_accepted");
+	commonNameCounts = counts(connection, "select tsn, count(*) from vernaculars group by tsn");
+    }
+
+    static final Map<Integer, Integer> counts(final Connection connection, final String sql) throws SQLException{
+	Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery(sql);
+	try{
+	    while(rs.next()){
+		counts.put(rs.getInt(1), rs.getInt(2));
+	    }
+	}finally{
+	    ItisLoader.closeAll(statement, rs);
+	}
+	return counts;
+    }
+
+    // Every tsn in the cache must be one of the source tsns the load was meant to load
+    final void checkExtra() throws IOException{
+	ExistenceIndex index = ExistenceIndex.load(new File(cacheDir));
+	if(index == null){
+	    System.out.println("CacheVerifier: no existence index in " + cacheDir + "; not checking for extra records");
+	    return;
+	}
+	TsnBitmap source = new TsnBitmap();
+	for(int tsn: tsns){
+	    if(tsn >= 0){
+		source.add(tsn);
+	    }
+	}
+	for(int tsn: index.tsns()){
+	    if(!source.contains(tsn)){
+		fail(EXTRA, tsn);
+	    }
+	}
+    }
+
+    // Checks every numThreads-th tsn, starting at first
+    final void check(final CachingProxyImpl pi, final int first){
+	Connection connection = null;
+	try{
+	    connection = DriverManager.getConnection(url);
+	    for(int i=first; i<tsns.length; i+=numThreads){
+		int tsn = tsns[i];
+		numChecked.incrementAndGet();
+		try{
+		    checkRecord(pi, connection, tsn, i % sampleEvery == 0);
+		}catch(Exception e){
+		    fail(ERROR, tsn);
+		    e.printStackTrace();
+		}
+	    }
+	}catch(SQLException e){
+	    e.printStackTrace();
+	    fail(ERROR, -1);
+	}finally{
+	    if(connection != null){
+		try{
+		    connection.close();
+		}catch(SQLException e){
+		    e.printStackTrace();
+		}
+	    }
+	}
+    }
+
+    final void checkRecord(final CachingProxyImpl pi, final Connection connection, final int tsn, final boolean sample) throws SQLException, IllegalAccessException{
+	ItisRecord ir = pi.getByTSN(Integer.toString(tsn));
+	if(ir == null){
+	    fail(MISSING, tsn);
+	    return;
+	}
+
+	List<TaxonomicRank> hierarchy = ir.getTaxonomicHierarchy();
+	TaxonomicRank self = null;
+	int above = -1;
+	if(hierarchy != null){
+	    for(int i=0; i<hierarchy.size(); i++){
+		if(Integer.toString(tsn).equals(hierarchy.get(i).getTsn())){
+		    self = hierarchy.get(i);
+		    above = i;
+		    break;
+		}
+	    }
+	}
+	if(above != depth(tsn)){
+	    fail(HIERARCHY, tsn);
+	}
+
+	int numSynonyms = ir.getSynonyms() == null? 0: ir.getSynonyms().size();
+	if(numSynonyms != count(synonymCounts, tsn)){
+	    fail(SYNONYMS, tsn);
+	}
+
+	int numCommonNames = 0;
+	if(self != null && self.getCommonNames() != null){
+	    for(List<String> names: self.getCommonNames().values()){
+		numCommonNames += names.size();
+	    }
+	}
+	if(numCommonNames != count(commonNameCounts, tsn)){
+	    fail(COMMON_NAMES, tsn);
+	}
+
+	if(sample){
+	    numSampled.incrementAndGet();
+	    String difference = difference(ir, assemble(pi, connection, tsn), "record", 0);
+	    if(difference != null && fail(SAMPLE, tsn)){
+		System.err.println("CacheVerifier: tsn " + tsn + " differs from the source at " + difference);
+	    }
+	}
+    }
+
+    // Path of the first field at which two decoded records differ, null if they do not. The record
+    // model has no equals(), so objects are compared field by field, lists in order and maps by key
+    // (not in their iteration order, which can differ between two equal records)
+    static final String difference(final Object a, final Object b, final String path, final int depth) throws IllegalAccessException{
+	if(a == b || depth > MAX_COMPARE_DEPTH){
+	    return null;
+	}
+	if(a == null || b == null || a.getClass() != b.getClass()){
+	    return path;
+	}
+	Class<?> c = a.getClass();
+	if(c.isPrimitive() || c.isEnum() || c.getName().startsWith("java.") && !(a instanceof Collection) && !(a instanceof Map)){
+	    return a.equals(b)? null: path;
+	}
+	if(a instanceof Map){
+	    Map<?, ?> ma = (Map<?, ?>)a;
+	    Map<?, ?> mb = (Map<?, ?>)b;
+	    if(ma.size() != mb.size()){
+		return path + ".size";
+	    }
+	    for(Map.Entry<?, ?> entry: ma.entrySet()){
+		String keyPath = path + "[" + entry.getKey() + "]";
+		if(!mb.containsKey(entry.getKey())){
+		    return keyPath;
+		}
+		String d = difference(entry.getValue(), mb.get(entry.getKey()), keyPath, depth + 1);
+		if(d != null){
+		    return d;
+		}
+	    }
+	    return null;
+	}
+	if(a instanceof Collection){
+	    Collection<?> ca = (Collection<?>)a;
+	    Collection<?> cb = (Collection<?>)b;
+	    if(ca.size() != cb.size()){
+		return path + ".size";
+	    }
+	    Iterator<?> ia = ca.iterator();
+	    Iterator<?> ib = cb.iterator();
+	    for(int i=0; ia.hasNext(); i++){
+		String d = difference(ia.next(), ib.next(), path + "[" + i + "]", depth + 1);
+		if(d != null){
+		    return d;
+		}
+	    }
+	    return null;
+	}
+	if(c.isArray()){
+	    int n = Array.getLength(a);
+	    if(n != Array.getLength(b)){
+		return path + ".length";
+	    }
+	    for(int i=0; i<n; i++){
+		String d = difference(Array.get(a, i), Array.get(b, i), path + "[" + i + "]", depth + 1);
+		if(d != null){
+		    return d;
+		}
+	    }
+	    return null;
+	}
+	for(Class<?> k=c; k != null && k != Object.class; k=k.getSuperclass()){
+	    for(Field f: k.getDeclaredFields()){
+		if(Modifier.isStatic(f.getModifiers()) || Modifier.isTransient(f.getModifiers())){
+		    continue;
+		}
+		f.setAccessible(true);
+		String d = difference(f.get(a), f.get(b), path + "." + f.getName(), depth + 1);
+		if(d != null){
+		    return d;
+		}
+	    }
+	}
+	return null;
+    }
+
+    // Re-assembles the record from the source the same way as ItisLoader.getRecords
+    static final ItisRecord assemble(final CachingProxyImpl pi, final Connection connection, final int tsn) throws SQLException{
+	List<TaxonRow> rows = ItisLoader.getTaxonRows(connection, "select * from taxonomic_units where tsn=" + tsn);
+	if(rows.size() == 0){
+	    return null;
+	}
+	TaxonRow row = rows.get(0);
+	FullRecord rec = ItisLoader.makeFullRecord(connection, row);
+	List<TaxRank> aboveRanks = ItisLoader.getHierarchyAbove(connection, row.parentTsn);
+	List<TaxRank> belowRanks = ItisLoader.getHierarchyOneLevelDown(connection, row.tsn);
+	return pi.populateFullItisRecord(rec, aboveRanks, belowRanks);
+    }
+
+    final boolean inRootSubtree(final int tsn){
+	Integer t = tsn;
+	for(int depth=0; t != null && depth <= parents.size(); depth++){
+	    if(filter.isRoot(t)){
+		return true;
+	    }
+	    t = parents.get(t);
+	}
+	return false;
+    }
+
+    // Number of ancestors of the tsn in the source
+    final int depth(int tsn){
+	int depth = 0;
+	Integer parent = parents.get(tsn);
+	while(parent != null && parent.intValue() != 0 && parents.containsKey(parent)){
+	    ++depth;
+	    if(depth > parents.size()){
+		return -1; // cycle
+	    }
+	    parent = parents.get(parent);
+	}
+	return depth;
+    }
+
+    static final int count(final Map<Integer, Integer> counts, final int tsn){
+	Integer n = counts.get(tsn);
+	return n == null? 0: n.intValue();
+    }
+
+    // Returns true if the tsn was kept as one of the examples of the category
+    final boolean fail(final String category, final int tsn){
+	failures.get(category).incrementAndGet();
+	List<Integer> ex = examples.get(category);
+	// The check and the add are one step: the list is shared by the checking threads
+	synchronized(ex){
+	    if(ex.size() < MAX_EXAMPLES){
+		ex.add(tsn);
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    public final long getFailures(final String category){
+	return failures.get(category).get();
+    }
+
+    final void report(final double seconds){
+	System.out.println("****************Verification of " + cacheDir + " against " + url);
+	System.out.println("****************  tsns checked: " + numChecked.get() + "  sampled: " + numSampled.get() + "  seconds: " + seconds);
+	for(Map.Entry<String, AtomicLong> entry: failures.entrySet()){
+	    String category = entry.getKey();
+	    System.out.println("****************  " + category + ": " + entry.getValue().get() 
+			       + (entry.getValue().get() > 0? "  e.g. tsns: " + examples.get(category): ""));
+	}
+    }
+
+}//
@@ -0,0 +1,355 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* CacheVersions: versioned cache builds under one cache root directory.
+
+   root/versions/<version>/     one complete cache per build (ITIS export date), with a MANIFEST.properties
+   root/CURRENT                 name of the published version (replaced atomically)
+   root/current -> versions/<version>   symlink to the same, for readers that just open a directory
+
+   A build goes into a new version directory; only when it is complete is it published by
+   atomically replacing the pointer, so readers never see a half built cache.
+   Readers (see ItisCacheServer) poll CURRENT and switch over without restarting.
+   The last N complete versions (with a manifest) are kept so that a rollback is just publishing
+   an older version; a failed build is deleted by the loader, and one left by a crashed loader
+   by the next prune.
+   A reader holds a shared lock on versions/<version>/in-use.lck while it has the version open,
+   and the loader while it builds it: pruning skips locked versions, and the OS drops the lock
+   if the process dies.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+
+public class CacheVersions
+{
+    public static final String VERSIONS_DIR = "versions";
+    public static final String CURRENT_FILE = "CURRENT";
+    public static final String CURRENT_LINK = "current";
+    public static final String MANIFEST_FILE = "MANIFEST.properties";
+    public static final String IN_USE_FILE = "in-use.lck";
+
+    static final String MANIFEST_VERSION = "version";
+    static final String MANIFEST_CREATED = "created";
+    static final String MANIFEST_FILE_PREFIX = "file.";
+    static final String MANIFEST_CRC32_SUFFIX = ".crc32";
+    static final String MANIFEST_SIZE_SUFFIX = ".size";
+
+    public static final int DEFAULT_KEEP = 3;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final void usage(){
+	System.err.println("\n\tUsage: java ca.gc.agr.mbb.itisproxyloader.CacheVersions path_of_cache_root list|rollback version|verify version\n");
+	System.exit(42);
+    }
+
+    public static final void main(final String[] args){
+	if(args.length < 2){
+	    usage();
+	}
+	File root = new File(args[0]);
+	try{
+	    if(args[1].equals("list") && args.length == 2){
+		String current = currentVersion(root);
+		for(String version: listVersions(root)){
+		    System.out.println((version.equals(current)? "* ": "  ") + version
+				       + (isComplete(versionDir(root, version))? "": " (incomplete)"));
+		}
+	    }else if(args[1].equals("rollback") && args.length == 3){
+		if(!verify(versionDir(root, args[2]))){
+		    System.err.println("ERROR: version " + args[2] + " does not match its manifest; not publishing");
+		    System.exit(1);
+		}
+		publish(root, args[2]);
+		System.out.println("Published " + args[2]);
+	    }else if(args[1].equals("verify") && args.length == 3){
+		boolean ok = verify(versionDir(root, args[2]));
+		System.out.println(args[2] + (ok? ": OK": ": FAILED"));
+		if(!ok){
+		    System.exit(1);
+		}
+	    }else{
+		usage();
+	    }
+	}catch(IOException e){
+	    e.printStackTrace();
+	    System.exit(1);
+	}
+    }
+
+    // Default version name: the date of the ITIS export (the sqlite file)
+    public static final String defaultVersion(final File dbFile){
+	return new SimpleDateFormat("yyyyMMdd").format(new Date(dbFile.lastModified()));
+    }
+
+    public static final File versionDir(final File root, final String version){
+	return new File(new File(root, VERSIONS_DIR), version);
+    }
+
+    // Creates the directory for a new build; a suffix is added if the version was already built
+    public static final File newVersionDir(final File root, final String version) throws IOException{
+	File dir = versionDir(root, version);
+	for(int i=2; dir.exists(); i++){
+	    dir = versionDir(root, version + "-" + i);
+	}
+	if(!dir.mkdirs()){
+	    throw new IOException("Unable to create version directory: " + dir);
+	}
+	return dir;
+    }
+
+    public static final List<String> listVersions(final File root){
+	List<String> versions = new ArrayList<String>();
+	File[] dirs = new File(root, VERSIONS_DIR).listFiles();
+	if(dirs == null){
+	    return versions;
+	}
+	Arrays.sort(dirs, new Comparator<File>(){
+		public int compare(final File a, final File b){
+		    int c = Long.compare(buildTime(a), buildTime(b));
+		    return c != 0? c: a.getName().compareTo(b.getName());
+		}
+	    });
+	for(File dir: dirs){
+	    if(dir.isDirectory()){
+		versions.add(dir.getName());
+	    }
+	}
+	return versions;
+    }
+
+    // When the build was completed: its manifest is written once, while the directory itself changes
+    // whenever a file is created in it (e.g. the in-use lock)
+    static final long buildTime(final File versionDir){
+	File manifest = new File(versionDir, MANIFEST_FILE);
+	return manifest.exists()? manifest.lastModified(): versionDir.lastModified();
+    }
+
+    // Returns null if nothing has been published
+    public static final String currentVersion(final File root) throws IOException{
+	File f = new File(root, CURRENT_FILE);
+	if(!f.exists()){
+	    return null;
+	}
+	String version = new String(Files.readAllBytes(f.toPath()), UTF8).trim();
+	return version.length() == 0? null: version;
+    }
+
+    // Directory of the published version, or null if nothing has been published
+    public static final File currentDir(final File root) throws IOException{
+	String version = currentVersion(root);
+	return version == null? null: versionDir(root, version);
+    }
+
+    public static final void writeManifest(final File versionDir, final Map<String, String> stats) throws IOException{
+	Properties manifest = new Properties();
+	manifest.setProperty(MANIFEST_VERSION, versionDir.getName());
+	manifest.setProperty(MANIFEST_CREATED, new Date().toString());
+	manifest.putAll(stats);
+	for(File f: dataFiles(versionDir)){
+	    manifest.setProperty(MANIFEST_FILE_PREFIX + f.getName() + MANIFEST_SIZE_SUFFIX, Long.toString(f.length()));
+	    manifest.setProperty(MANIFEST_FILE_PREFIX + f.getName() + MANIFEST_CRC32_SUFFIX, Long.toHexString(crc32(f, f.length())));
+	}
+	OutputStream out = new FileOutputStream(new File(versionDir, MANIFEST_FILE));
+	try{
+	    manifest.store(out, "ITIS cache build");
+	}finally{
+	    out.close();
+	}
+    }
+
+    // Checks that every file listed in the manifest is present and unchanged
+    public static final boolean verify(final File versionDir) throws IOException{
+	File manifestFile = new File(versionDir, MANIFEST_FILE);
+	if(!manifestFile.exists()){
+	    System.err.println("verify: no manifest in " + versionDir);
+	    return false;
+	}
+	Properties manifest = new Properties();
+	InputStream in = new FileInputStream(manifestFile);
+	try{
+	    manifest.load(in);
+	}finally{
+	    in.close();
+	}
+	boolean ok = true;
+	for(String key: manifest.stringPropertyNames()){
+	    if(!key.startsWith(MANIFEST_FILE_PREFIX) || !key.endsWith(MANIFEST_CRC32_SUFFIX)){
+		continue;
+	    }
+	    String name = key.substring(MANIFEST_FILE_PREFIX.length(), key.length() - MANIFEST_CRC32_SUFFIX.length());
+	    File f = new File(versionDir, name);
+	    // BDB log files are append only: check the bytes that were there when the manifest was written
+	    String size = manifest.getProperty(MANIFEST_FILE_PREFIX + name + MANIFEST_SIZE_SUFFIX);
+	    long length = size == null? Long.MAX_VALUE: Long.parseLong(size);
+	    if(!f.exists() || f.length() < length || !Long.toHexString(crc32(f, length)).equals(manifest.getProperty(key))){
+		System.err.println("verify: missing or changed: " + f);
+		ok = false;
+	    }
+	}
+	return ok;
+    }
+
+    // Atomically points CURRENT (and the current symlink) at the version
+    public static final void publish(final File root, final String version) throws IOException{
+	if(!versionDir(root, version).isDirectory()){
+	    throw new IOException("No such version: " + version + " in " + root);
+	}
+	File tmp = new File(root, CURRENT_FILE + ".tmp");
+	Files.write(tmp.toPath(), (version + "\n").getBytes(UTF8));
+	replace(tmp, new File(root, CURRENT_FILE));
+
+	Path link = new File(root, CURRENT_LINK).toPath();
+	Path tmpLink = new File(root, CURRENT_LINK + ".tmp").toPath();
+	try{
+	    Files.deleteIfExists(tmpLink);
+	    Files.createSymbolicLink(tmpLink, new File(VERSIONS_DIR, version).toPath());
+	    Files.move(tmpLink, link, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}catch(UnsupportedOperationException e){
+	    System.err.println("publish: symbolic links not supported here; readers must use " + CURRENT_FILE);
+	}catch(IOException e){
+	    System.err.println("publish: unable to update symbolic link " + link + ": " + e.getMessage() + "; readers must use " + CURRENT_FILE);
+	}
+    }
+
+    // A build that completed: one that failed or is still being built has no manifest
+    public static final boolean isComplete(final File versionDir){
+	return new File(versionDir, MANIFEST_FILE).isFile();
+    }
+
+    // Deletes all but the newest keep complete versions, and incomplete ones (failed builds);
+    // neither the published version nor one that is locked (see lockInUse: open by a reader, or
+    // being built) is deleted
+    public static final List<String> prune(final File root, final int keep) throws IOException{
+	String current = currentVersion(root);
+	List<String> versions = listVersions(root);
+	Collections.reverse(versions);
+	List<String> deleted = new ArrayList<String>();
+	int kept = 0;
+	for(String version: versions){
+	    File dir = versionDir(root, version);
+	    if(isComplete(dir) && kept < keep){
+		++kept;
+		continue;
+	    }
+	    if(version.equals(current)){
+		continue;
+	    }
+	    FileLock lock = tryLockUnused(dir);
+	    if(lock == null){
+		System.err.println("prune: version " + version + " is in use; not deleted");
+		continue;
+	    }
+	    try{
+		deleteRecursively(dir);
+	    }finally{
+		lock.channel().close();
+	    }
+	    deleted.add(version);
+	}
+	return deleted;
+    }
+
+    // Held by a reader for as long as it has the version open, and by the loader while it builds
+    // it: released by closing its channel
+    public static final FileLock lockInUse(final File versionDir) throws IOException{
+	FileChannel channel = FileChannel.open(new File(versionDir, IN_USE_FILE).toPath(),
+					       StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	try{
+	    return channel.lock(0l, Long.MAX_VALUE, true);
+	}catch(IOException e){
+	    channel.close();
+	    throw e;
+	}
+    }
+
+    // An exclusive lock if no reader holds the version, null otherwise
+    static final FileLock tryLockUnused(final File versionDir) throws IOException{
+	FileChannel channel = FileChannel.open(new File(versionDir, IN_USE_FILE).toPath(),
+					       StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	FileLock lock = null;
+	try{
+	    lock = channel.tryLock();
+	}catch(OverlappingFileLockException e){
+	    // Held by a reader in this JVM
+	}finally{
+	    if(lock == null){
+		channel.close();
+	    }
+	}
+	return lock;
+    }
+
+    static final List<File> dataFiles(final File versionDir){
+	List<File> files = new ArrayList<File>();
+	File[] all = versionDir.listFiles();
+	if(all != null){
+	    for(File f: all){
+		if(f.isFile() && !f.getName().equals(MANIFEST_FILE) && !f.getName().endsWith(".lck")){
+		    files.add(f);
+		}
+	    }
+	}
+	Collections.sort(files);
+	return files;
+    }
+
+    // CRC32 of the first length bytes of the file
+    static final long crc32(final File f, long length) throws IOException{
+	CRC32 crc = new CRC32();
+	InputStream in = new BufferedInputStream(new FileInputStream(f));
+	try{
+	    byte[] buf = new byte[64 * 1024];
+	    int n;
+	    while(length > 0 && (n = in.read(buf, 0, (int)Math.min(buf.length, length))) > 0){
+		crc.update(buf, 0, n);
+		length -= n;
+	    }
+	}finally{
+	    in.close();
+	}
+	return crc.getValue();
+    }
+
+    // Replaces f with tmp in one step: a reader sees either the old file or the new one, never none
+    static final void replace(final File tmp, final File f) throws IOException{
+	Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static final void deleteRecursively(final File f) throws IOException{
+	File[] children = f.listFiles();
+	if(children != null){
+	    for(File child: children){
+		deleteRecursively(child);
+	    }
+	}
+	if(!f.delete()){
+	    throw new IOException("Unable to delete " + f);
+	}
+    }
+
+}//
@@ -0,0 +1,205 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* ColumnarSnapshotReader: reads the columnar snapshot written by ColumnarSnapshotWriter.
+   Only the chunks of the requested columns are read and inflated.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+
+public class ColumnarSnapshotReader
+{
+    private final RandomAccessFile file;
+    private final String[] columnNames;
+    private final byte[] columnTypes;
+    private final long[][] rowGroups;
+    private final int numRows;
+
+    public ColumnarSnapshotReader(final File f) throws IOException{
+	file = new RandomAccessFile(f, "r");
+	byte[] magic = new byte[ColumnarSnapshotWriter.MAGIC.length];
+	file.readFully(magic);
+	checkMagic(magic, f);
+	file.seek(file.length() - magic.length);
+	file.readFully(magic);
+	checkMagic(magic, f);
+
+	file.seek(file.length() - magic.length - 4);
+	int footerLength = file.readInt();
+	byte[] footer = new byte[footerLength];
+	file.seek(file.length() - magic.length - 4 - footerLength);
+	file.readFully(footer);
+
+	DataInputStream dis = new DataInputStream(new ByteArrayInputStream(footer));
+	int numColumns = dis.readInt();
+	columnNames = new String[numColumns];
+	columnTypes = new byte[numColumns];
+	for(int i=0; i<numColumns; i++){
+	    columnNames[i] = dis.readUTF();
+	    columnTypes[i] = dis.readByte();
+	}
+	rowGroups = new long[dis.readInt()][1 + 2*numColumns];
+	int n = 0;
+	for(long[] rg: rowGroups){
+	    for(int i=0; i<rg.length; i++){
+		rg[i] = dis.readLong();
+	    }
+	    n += (int)rg[0];
+	}
+	numRows = n;
+    }
+
+    public final String[] getColumnNames(){
+	return columnNames.clone();
+    }
+
+    public final int getNumRows(){
+	return numRows;
+    }
+
+    public final int getNumRowGroups(){
+	return rowGroups.length;
+    }
+
+    // Null rows (missing or not a number when written) are ColumnarSnapshotWriter.NULL_INT: see readIntNulls
+    public final int[] readIntColumn(final String name) throws IOException{
+	int column = column(name, ColumnarSnapshotWriter.TYPE_INT);
+	int[] values = new int[numRows];
+	int row = 0;
+	for(long[] rg: rowGroups){
+	    DataInputStream dis = chunk(rg, column);
+	    boolean[] nulls = readNulls(dis, (int)rg[0]);
+	    int previous = 0;
+	    for(int i=0; i<rg[0]; i++){
+		if(nulls[i]){
+		    values[row++] = ColumnarSnapshotWriter.NULL_INT;
+		}else{
+		    previous += unzigzag(readVarInt(dis));
+		    values[row++] = previous;
+		}
+	    }
+	    dis.close();
+	}
+	return values;
+    }
+
+    // Which rows of an int column are null
+    public final boolean[] readIntNulls(final String name) throws IOException{
+	int column = column(name, ColumnarSnapshotWriter.TYPE_INT);
+	boolean[] values = new boolean[numRows];
+	int row = 0;
+	for(long[] rg: rowGroups){
+	    DataInputStream dis = chunk(rg, column);
+	    boolean[] nulls = readNulls(dis, (int)rg[0]);
+	    System.arraycopy(nulls, 0, values, row, nulls.length);
+	    row += nulls.length;
+	    dis.close();
+	}
+	return values;
+    }
+
+    static final boolean[] readNulls(final DataInputStream dis, final int n) throws IOException{
+	boolean[] nulls = new boolean[n];
+	int numNulls = readVarInt(dis);
+	int i = 0;
+	for(int j=0; j<numNulls; j++){
+	    i += readVarInt(dis);
+	    nulls[i] = true;
+	}
+	return nulls;
+    }
+
+    public final String[] readStringColumn(final String name) throws IOException{
+	int column = column(name, ColumnarSnapshotWriter.TYPE_STRING);
+	String[] values = new String[numRows];
+	int row = 0;
+	for(long[] rg: rowGroups){
+	    DataInputStream dis = chunk(rg, column);
+	    String[] dictionary = readDictionary(dis);
+	    for(int i=0; i<rg[0]; i++){
+		values[row++] = dictionary[readVarInt(dis)];
+	    }
+	    dis.close();
+	}
+	return values;
+    }
+
+    public final String[][] readListColumn(final String name) throws IOException{
+	int column = column(name, ColumnarSnapshotWriter.TYPE_LIST);
+	String[][] values = new String[numRows][];
+	int row = 0;
+	for(long[] rg: rowGroups){
+	    DataInputStream dis = chunk(rg, column);
+	    String[] dictionary = readDictionary(dis);
+	    for(int i=0; i<rg[0]; i++){
+		String[] list = new String[readVarInt(dis)];
+		for(int j=0; j<list.length; j++){
+		    list[j] = dictionary[readVarInt(dis)];
+		}
+		values[row++] = list;
+	    }
+	    dis.close();
+	}
+	return values;
+    }
+
+    public final void close() throws IOException{
+	file.close();
+    }
+
+    private final int column(final String name, final byte type){
+	for(int i=0; i<columnNames.length; i++){
+	    if(columnNames[i].equals(name)){
+		if(columnTypes[i] != type){
+		    throw new IllegalArgumentException("Column " + name + " is of type " + columnTypes[i] + " not " + type);
+		}
+		return i;
+	    }
+	}
+	throw new IllegalArgumentException("No such column: " + name + "; columns are: " + Arrays.toString(columnNames));
+    }
+
+    private final DataInputStream chunk(final long[] rg, final int column) throws IOException{
+	byte[] bytes = new byte[(int)rg[2 + 2*column]];
+	file.seek(rg[1 + 2*column]);
+	file.readFully(bytes);
+	return new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    static final String[] readDictionary(final DataInputStream dis) throws IOException{
+	String[] dictionary = new String[readVarInt(dis) + 1];
+	for(int i=1; i<dictionary.length; i++){
+	    dictionary[i] = dis.readUTF();
+	}
+	return dictionary;
+    }
+
+    static final int unzigzag(final int v){
+	return (v >>> 1) ^ -(v & 1);
+    }
+
+    static final int readVarInt(final DataInputStream dis) throws IOException{
+	int v = 0;
+	int shift = 0;
+	int b;
+	do{
+	    b = dis.readUnsignedByte();
+	    v |= (b & 0x7f) << shift;
+	    shift += 7;
+	}while((b & 0x80) != 0);
+	return v;
+    }
+
+    static final void checkMagic(final byte[] magic, final File f) throws IOException{
+	if(!Arrays.equals(magic, ColumnarSnapshotWriter.MAGIC)){
+	    throw new IOException("Not a columnar ITIS snapshot: " + f);
+	}
+    }
+
+}//
@@ -0,0 +1,371 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* ColumnarSnapshotWriter: optional extra sink for ItisLoader that writes the
+   assembled records as a compressed columnar snapshot for analytics.
+
+   Rows are buffered into row groups; each column of a row group is written as
+   its own deflated chunk. String columns are dictionary encoded (per row group),
+   int columns are the rows that are null (missing or not a number: count, then row
+   deltas) followed by zigzag delta varints of the other rows, and list columns
+   (jurisdictions, geographic divisions) are a per-row count followed by dictionary ids.
+   The footer records the offset of every chunk so that a scan reads only the
+   columns it needs: see ColumnarSnapshotReader
+
+   File layout:
+   --
+   MAGIC
+   chunk* 
+   footer: numColumns, (name, type)*, numRowGroups, (numRows, (offset, length)*)*
+   footer length (int)
+   MAGIC
+   --
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+
+import ca.gc.agr.mbb.itisproxy.entities.FullRecord;
+import ca.gc.agr.mbb.itisproxy.entities.GeoDivision;
+import ca.gc.agr.mbb.itisproxy.entities.JurisdictionalOrigin;
+
+
+public class ColumnarSnapshotWriter
+{
+    static final byte[] MAGIC = {'I', 'T', 'I', 'S', 'C', 'O', 'L', '2'};
+
+    static final byte TYPE_INT = 1;
+    static final byte TYPE_STRING = 2;
+    static final byte TYPE_LIST = 3;
+
+    // Value of a null int in the int[] returned by ColumnarSnapshotReader.readIntColumn: see readIntNulls
+    public static final int NULL_INT = 0;
+
+    public static final int DEFAULT_ROW_GROUP_SIZE = 65536;
+
+    public static final String TSN = "tsn";
+    public static final String PARENT_TSN = "parentTsn";
+    public static final String RANK_ID = "rankId";
+    public static final String KINGDOM_ID = "kingdomId";
+    public static final String RANK_NAME = "rankName";
+    public static final String KINGDOM_NAME = "kingdomName";
+    public static final String COMPLETE_NAME = "completeName";
+    public static final String UNIT_NAME1 = "unitName1";
+    public static final String UNIT_NAME2 = "unitName2";
+    public static final String UNIT_NAME3 = "unitName3";
+    public static final String UNIT_NAME4 = "unitName4";
+    public static final String AUTHOR = "author";
+    public static final String USAGE = "usage";
+    public static final String UNACCEPT_REASON = "unacceptReason";
+    public static final String CURRENCY_RATING = "currencyRating";
+    public static final String COMPLETENESS_RATING = "completenessRating";
+    public static final String CREDIBILITY_RATING = "credibilityRating";
+    public static final String JURISDICTIONS = "jurisdictions";
+    public static final String GEO_DIVISIONS = "geoDivisions";
+
+    static final String[] COLUMN_NAMES = {
+	TSN, PARENT_TSN, RANK_ID, KINGDOM_ID,
+	RANK_NAME, KINGDOM_NAME, COMPLETE_NAME, UNIT_NAME1, UNIT_NAME2, UNIT_NAME3, UNIT_NAME4, AUTHOR,
+	USAGE, UNACCEPT_REASON, CURRENCY_RATING, COMPLETENESS_RATING, CREDIBILITY_RATING,
+	JURISDICTIONS, GEO_DIVISIONS
+    };
+
+    static final byte[] COLUMN_TYPES = {
+	TYPE_INT, TYPE_INT, TYPE_INT, TYPE_INT,
+	TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_STRING,
+	TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_STRING, TYPE_STRING,
+	TYPE_LIST, TYPE_LIST
+    };
+
+    // Separates jurisdiction value and origin in the flattened jurisdictions column
+    public static final String JURISDICTION_SEPARATOR = ":";
+
+    private final int rowGroupSize;
+    private final DataOutputStream out;
+    private long offset = 0l;
+    private long numRows = 0l;
+
+    private int[][] intColumns;
+    private boolean[][] intNulls;
+    private String[][] stringColumns;
+    private List<List<String[]>> listColumns;
+    private int rowsInGroup = 0;
+
+    // per row group: number of rows, then offset/length of each column chunk
+    private final List<long[]> rowGroups = new ArrayList<long[]>();
+
+    public ColumnarSnapshotWriter(final File file) throws IOException{
+	this(file, DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    public ColumnarSnapshotWriter(final File file, final int rowGroupSize) throws IOException{
+	if(rowGroupSize < 1){
+	    throw new IllegalArgumentException("Row group size must be > 0: " + rowGroupSize);
+	}
+	this.rowGroupSize = rowGroupSize;
+	out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024*1024));
+	out.write(MAGIC);
+	offset = MAGIC.length;
+	newRowGroup();
+    }
+
+    public long getNumRows(){
+	return numRows;
+    }
+
+    public final synchronized void add(final FullRecord rec) throws IOException{
+	int row = rowsInGroup;
+	int i = 0;
+	setInt(i++, row, rec.tsn);
+	setInt(i++, row, rec.parentTsn.parentTsn);
+	setInt(i++, row, rec.taxRank.rankId);
+	setInt(i++, row, rec.kingdom.kingdomId);
+
+	i = 0;
+	stringColumns[i++][row] = rec.taxRank.rankName;
+	stringColumns[i++][row] = rec.kingdom.kingdomName;
+	if(rec.scientificName != null){
+	    stringColumns[i++][row] = rec.scientificName.combinedName;
+	    stringColumns[i++][row] = rec.scientificName.unitName1;
+	    stringColumns[i++][row] = rec.scientificName.unitName2;
+	    stringColumns[i++][row] = rec.scientificName.unitName3;
+	    stringColumns[i++][row] = rec.scientificName.unitName4;
+	    stringColumns[i++][row] = rec.scientificName.author;
+	}else{
+	    for(int j=0; j<6; j++){
+		stringColumns[i++][row] = null;
+	    }
+	}
+	stringColumns[i++][row] = rec.usage == null? null: rec.usage.taxonUsageRating;
+	stringColumns[i++][row] = rec.unacceptReason == null? null: rec.unacceptReason.unacceptReason;
+	stringColumns[i++][row] = rec.currencyRating == null? null: rec.currencyRating.taxonCurrency;
+	stringColumns[i++][row] = rec.completenessRating == null? null: rec.completenessRating.completeness;
+	stringColumns[i++][row] = rec.credibilityRating == null? null: rec.credibilityRating.credRating;
+
+	String[] jurisdictions = new String[0];
+	if(rec.jurisdictionalOriginList != null && rec.jurisdictionalOriginList.jurisdictionalOrigins != null){
+	    List<JurisdictionalOrigin> jos = rec.jurisdictionalOriginList.jurisdictionalOrigins;
+	    jurisdictions = new String[jos.size()];
+	    for(int j=0; j<jurisdictions.length; j++){
+		jurisdictions[j] = jos.get(j).jurisdictionValue + JURISDICTION_SEPARATOR + jos.get(j).origin;
+	    }
+	}
+	String[] geoDivisions = new String[0];
+	if(rec.geographicDivisionList != null && rec.geographicDivisionList.geoDivisions != null){
+	    List<GeoDivision> gds = rec.geographicDivisionList.geoDivisions;
+	    geoDivisions = new String[gds.size()];
+	    for(int j=0; j<geoDivisions.length; j++){
+		geoDivisions[j] = gds.get(j).geographicValue;
+	    }
+	}
+	listColumns.get(0).add(jurisdictions);
+	listColumns.get(1).add(geoDivisions);
+
+	++numRows;
+	++rowsInGroup;
+	if(rowsInGroup == rowGroupSize){
+	    flushRowGroup();
+	}
+    }
+
+    private final void setInt(final int column, final int row, final String s){
+	Integer v = parseInt(s);
+	intNulls[column][row] = v == null;
+	intColumns[column][row] = v == null? NULL_INT: v;
+    }
+
+    public final synchronized void close() throws IOException{
+	if(rowsInGroup > 0){
+	    flushRowGroup();
+	}
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream footer = new DataOutputStream(bytes);
+	footer.writeInt(COLUMN_NAMES.length);
+	for(int i=0; i<COLUMN_NAMES.length; i++){
+	    footer.writeUTF(COLUMN_NAMES[i]);
+	    footer.writeByte(COLUMN_TYPES[i]);
+	}
+	footer.writeInt(rowGroups.size());
+	for(long[] rg: rowGroups){
+	    for(long v: rg){
+		footer.writeLong(v);
+	    }
+	}
+	footer.flush();
+	out.write(bytes.toByteArray());
+	out.writeInt(bytes.size());
+	out.write(MAGIC);
+	out.close();
+    }
+
+    private final void newRowGroup(){
+	int numInt = 0, numString = 0;
+	for(byte type: COLUMN_TYPES){
+	    if(type == TYPE_INT){
+		++numInt;
+	    }else if(type == TYPE_STRING){
+		++numString;
+	    }
+	}
+	intColumns = new int[numInt][rowGroupSize];
+	intNulls = new boolean[numInt][rowGroupSize];
+	stringColumns = new String[numString][rowGroupSize];
+	listColumns = new ArrayList<List<String[]>>();
+	listColumns.add(new ArrayList<String[]>());
+	listColumns.add(new ArrayList<String[]>());
+	rowsInGroup = 0;
+    }
+
+    private final void flushRowGroup() throws IOException{
+	long[] rg = new long[1 + 2*COLUMN_NAMES.length];
+	rg[0] = rowsInGroup;
+	int nInt = 0, nString = 0, nList = 0;
+	for(int i=0; i<COLUMN_TYPES.length; i++){
+	    byte[] chunk;
+	    switch(COLUMN_TYPES[i]){
+	    case TYPE_INT:
+		chunk = encodeInts(intColumns[nInt], intNulls[nInt], rowsInGroup);
+		++nInt;
+		break;
+	    case TYPE_STRING:
+		chunk = encodeStrings(stringColumns[nString++], rowsInGroup);
+		break;
+	    default:
+		chunk = encodeLists(listColumns.get(nList++));
+	    }
+	    rg[1 + 2*i] = offset;
+	    rg[2 + 2*i] = chunk.length;
+	    out.write(chunk);
+	    offset += chunk.length;
+	}
+	rowGroups.add(rg);
+	newRowGroup();
+    }
+
+    static final byte[] encodeInts(final int[] values, final boolean[] nulls, final int n) throws IOException{
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream dos = compressed(bytes);
+	int numNulls = 0;
+	for(int i=0; i<n; i++){
+	    if(nulls[i]){
+		++numNulls;
+	    }
+	}
+	writeVarInt(dos, numNulls);
+	int previous = 0;
+	for(int i=0; i<n; i++){
+	    if(nulls[i]){
+		writeVarInt(dos, i - previous);
+		previous = i;
+	    }
+	}
+	previous = 0;
+	for(int i=0; i<n; i++){
+	    if(!nulls[i]){
+		writeVarInt(dos, zigzag(values[i] - previous));
+		previous = values[i];
+	    }
+	}
+	dos.close();
+	return bytes.toByteArray();
+    }
+
+    static final byte[] encodeStrings(final String[] values, final int n) throws IOException{
+	Map<String, Integer> dictionary = new HashMap<String, Integer>();
+	List<String> entries = new ArrayList<String>();
+	int[] ids = new int[n];
+	for(int i=0; i<n; i++){
+	    ids[i] = lookup(dictionary, entries, values[i]);
+	}
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream dos = compressed(bytes);
+	writeDictionary(dos, entries);
+	for(int id: ids){
+	    writeVarInt(dos, id);
+	}
+	dos.close();
+	return bytes.toByteArray();
+    }
+
+    static final byte[] encodeLists(final List<String[]> values) throws IOException{
+	Map<String, Integer> dictionary = new HashMap<String, Integer>();
+	List<String> entries = new ArrayList<String>();
+	int[][] ids = new int[values.size()][];
+	for(int i=0; i<ids.length; i++){
+	    String[] row = values.get(i);
+	    ids[i] = new int[row.length];
+	    for(int j=0; j<row.length; j++){
+		ids[i][j] = lookup(dictionary, entries, row[j]);
+	    }
+	}
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream dos = compressed(bytes);
+	writeDictionary(dos, entries);
+	for(int[] row: ids){
+	    writeVarInt(dos, row.length);
+	    for(int id: row){
+		writeVarInt(dos, id);
+	    }
+	}
+	dos.close();
+	return bytes.toByteArray();
+    }
+
+    // Dictionary id 0 is reserved for null
+    static final int lookup(final Map<String, Integer> dictionary, final List<String> entries, final String value){
+	if(value == null){
+	    return 0;
+	}
+	Integer id = dictionary.get(value);
+	if(id == null){
+	    entries.add(value);
+	    id = entries.size();
+	    dictionary.put(value, id);
+	}
+	return id;
+    }
+
+    static final void writeDictionary(final DataOutputStream dos, final List<String> entries) throws IOException{
+	writeVarInt(dos, entries.size());
+	for(String entry: entries){
+	    dos.writeUTF(entry);
+	}
+    }
+
+    static final DataOutputStream compressed(final ByteArrayOutputStream bytes){
+	return new DataOutputStream(new DeflaterOutputStream(bytes));
+    }
+
+    static final int zigzag(final int v){
+	return (v << 1) ^ (v >> 31);
+    }
+
+    static final void writeVarInt(final DataOutputStream dos, int v) throws IOException{
+	while((v & ~0x7f) != 0){
+	    dos.writeByte((v & 0x7f) | 0x80);
+	    v >>>= 7;
+	}
+	dos.writeByte(v);
+    }
+
+    // null if missing or not a number
+    static final Integer parseInt(final String s){
+	if(s == null){
+	    return null;
+	}
+	try{
+	    return Integer.valueOf(s.trim());
+	}catch(NumberFormatException e){
+	    return null;
+	}
+    }
+
+}//
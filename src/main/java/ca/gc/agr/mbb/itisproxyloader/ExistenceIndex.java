@@ -0,0 +1,140 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* ExistenceIndex: in-memory existence structure for the tsns written to the cache,
+   written by ItisLoader alongside the BDB files in the cache directory.
+   Lets a reader answer "does tsn X exist / is it accepted" without a BDB lookup,
+   and skip the CachingProxyImpl entirely for tsns that are not in the cache.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+
+public class ExistenceIndex
+{
+    public static final String FILE_NAME = "tsn-existence.idx";
+    static final int VERSION = 1;
+
+    // ITIS taxonomic_units.name_usage values
+    static final String USAGE_ACCEPTED = "accepted";
+    static final String USAGE_VALID = "valid";
+    static final String USAGE_NOT_ACCEPTED = "not accepted";
+    static final String USAGE_INVALID = "invalid";
+
+    private final TsnBitmap exists;
+    private final TsnBitmap accepted;
+    private final TsnBitmap unaccepted;
+
+    public ExistenceIndex(){
+	this(new TsnBitmap(), new TsnBitmap(), new TsnBitmap());
+    }
+
+    ExistenceIndex(final TsnBitmap exists, final TsnBitmap accepted, final TsnBitmap unaccepted){
+	this.exists = exists;
+	this.accepted = accepted;
+	this.unaccepted = unaccepted;
+    }
+
+    public final synchronized void add(final String tsn, final String nameUsage){
+	int t = parseTsn(tsn);
+	if(t < 0){
+	    return;
+	}
+	exists.add(t);
+	if(USAGE_ACCEPTED.equalsIgnoreCase(nameUsage) || USAGE_VALID.equalsIgnoreCase(nameUsage)){
+	    accepted.add(t);
+	}else if(USAGE_NOT_ACCEPTED.equalsIgnoreCase(nameUsage) || USAGE_INVALID.equalsIgnoreCase(nameUsage)){
+	    unaccepted.add(t);
+	}
+    }
+
+    public final boolean exists(final int tsn){
+	return exists.contains(tsn);
+    }
+
+    public final boolean exists(final String tsn){
+	return exists(parseTsn(tsn));
+    }
+
+    public final boolean isAccepted(final int tsn){
+	return accepted.contains(tsn);
+    }
+
+    public final boolean isAccepted(final String tsn){
+	return isAccepted(parseTsn(tsn));
+    }
+
+    public final boolean isUnaccepted(final int tsn){
+	return unaccepted.contains(tsn);
+    }
+
+    public final boolean isUnaccepted(final String tsn){
+	return isUnaccepted(parseTsn(tsn));
+    }
+
+    public final long size(){
+	return exists.cardinality();
+    }
+
+    public final synchronized int[] tsns(){
+	return exists.toArray();
+    }
+
+    public final long numAccepted(){
+	return accepted.cardinality();
+    }
+
+    public final long numUnaccepted(){
+	return unaccepted.cardinality();
+    }
+
+    public final synchronized void save(final File dir) throws IOException{
+	File tmp = new File(dir, FILE_NAME + ".tmp");
+	DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try{
+	    dos.writeInt(VERSION);
+	    exists.write(dos);
+	    accepted.write(dos);
+	    unaccepted.write(dos);
+	}finally{
+	    dos.close();
+	}
+	CacheVersions.replace(tmp, new File(dir, FILE_NAME));
+    }
+
+    // Returns null if the cache directory has no existence index
+    public static final ExistenceIndex load(final File dir) throws IOException{
+	File f = new File(dir, FILE_NAME);
+	if(!f.exists()){
+	    return null;
+	}
+	DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	try{
+	    int version = dis.readInt();
+	    if(version != VERSION){
+		throw new IOException("Unsupported existence index version " + version + " in " + f);
+	    }
+	    return new ExistenceIndex(TsnBitmap.read(dis), TsnBitmap.read(dis), TsnBitmap.read(dis));
+	}finally{
+	    dis.close();
+	}
+    }
+
+    static final int parseTsn(final String tsn){
+	if(tsn == null){
+	    return -1;
+	}
+	try{
+	    return Integer.parseInt(tsn.trim());
+	}catch(NumberFormatException e){
+	    return -1;
+	}
+    }
+
+}//
@@ -0,0 +1,465 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* ItisCacheServer: small embedded HTTP query service over a cache built by ItisLoader.
+   The BDB environment is opened once and shared by all requests, so many services
+   can use one warm cache without each embedding CachingProxyImpl.
+
+   Endpoints (JSON):
+   --
+   GET /tsn/{tsn}                      the ItisRecord of the tsn
+   GET /hierarchy/{tsn}                the taxonomic hierarchy of the tsn
+   GET /batch?tsn=1,2,3  or
+   POST /batch  (tsns separated by commas or whitespace in the body)
+                                       streamed array of {"tsn":..., "record":...}, record null if not found
+   GET /stats                          latency histograms per endpoint
+   --
+   A tsn that is not a number is a 400; one that is not in the cache, a 404; a failure
+   reading the cache, a 500 (in a batch already being streamed, the array is left unterminated).
+
+   If the directory is the root of versioned builds (see CacheVersions), the published
+   version is served and the server switches to a newly published version without restarting;
+   the old version is closed once the requests using it are done.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.gc.agr.itis.itismodel.ItisRecord;
+import ca.gc.agr.mbb.itisproxy.CachingProxyImpl;
+
+
+public class ItisCacheServer
+{
+    public static final int DEFAULT_PORT = 8077;
+    public static final int MAX_BATCH_SIZE = 10000;
+
+    static final String CONTENT_TYPE = "application/json; charset=UTF-8";
+    static final String UTF8 = "UTF-8";
+
+    // Thread safe: shared by all requests
+    static final Gson GSON = new Gson();
+
+    // How often the published version of a versioned cache root is checked
+    static final long VERSION_POLL_SECONDS = 10l;
+
+    // An opened cache: swapped as a whole when a new version is published. Reference counted:
+    // the server holds one reference while it is the current cache, each request another
+    static final class Cache{
+	final File dir;
+	final CachingProxyImpl pi;
+	final ExistenceIndex existenceIndex;
+	final FileLock inUse;
+	final AtomicInteger references = new AtomicInteger(1);
+
+	Cache(final File dir, final CachingProxyImpl pi, final ExistenceIndex existenceIndex, final FileLock inUse){
+	    this.dir = dir;
+	    this.pi = pi;
+	    this.existenceIndex = existenceIndex;
+	    this.inUse = inUse;
+	}
+
+	static final Cache open(final File dir, final boolean versioned) throws IOException{
+	    // Locked first, so the version cannot be pruned while it is being opened
+	    FileLock inUse = versioned? CacheVersions.lockInUse(dir): null;
+	    CachingProxyImpl pi = null;
+	    boolean opened = false;
+	    try{
+		pi = ItisLoader.openCache(dir.getPath());
+		ExistenceIndex existenceIndex = ExistenceIndex.load(dir);
+		if(existenceIndex == null){
+		    System.err.println("ItisCacheServer: no " + ExistenceIndex.FILE_NAME + " in " + dir + ": every lookup goes to BDB");
+		}
+		Cache cache = new Cache(dir, pi, existenceIndex, inUse);
+		opened = true;
+		return cache;
+	    }finally{
+		if(!opened){
+		    if(pi != null){
+			ItisLoader.closeCache(pi);
+		    }
+		    if(inUse != null){
+			inUse.channel().close();
+		    }
+		}
+	    }
+	}
+
+	// False if the cache has already been closed
+	final boolean acquire(){
+	    for(;;){
+		int n = references.get();
+		if(n == 0){
+		    return false;
+		}
+		if(references.compareAndSet(n, n + 1)){
+		    return true;
+		}
+	    }
+	}
+
+	final void release(){
+	    if(references.decrementAndGet() == 0){
+		System.out.println("ItisCacheServer: closing " + dir);
+		if(pi != null){
+		    ItisLoader.closeCache(pi);
+		}
+		if(inUse != null){
+		    try{
+			inUse.channel().close();
+		    }catch(IOException e){
+			e.printStackTrace();
+		    }
+		}
+	    }
+	}
+    }
+
+    private final File root;
+    private final boolean versioned;
+    private volatile Cache cache;
+    private HttpServer server;
+    private ExecutorService executor;
+    private ScheduledExecutorService versionPoller;
+    private boolean stopped = false;
+
+    final LatencyHistogram tsnLatency = new LatencyHistogram();
+    final LatencyHistogram hierarchyLatency = new LatencyHistogram();
+    final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    public ItisCacheServer(final String cacheDir) throws IOException{
+	root = new File(cacheDir);
+	File current = CacheVersions.currentDir(root);
+	versioned = current != null;
+	if(!versioned && new File(root, CacheVersions.VERSIONS_DIR).isDirectory()){
+	    throw new IOException("No published version in versioned cache root " + root);
+	}
+	cache = Cache.open(versioned? current: root, versioned);
+    }
+
+    // Serves an already opened, unversioned cache
+    ItisCacheServer(final File root, final Cache cache){
+	this.root = root;
+	this.versioned = false;
+	this.cache = cache;
+    }
+
+    public static final void usage(){
+	System.err.println("\n\tUsage: java ca.gc.agr.mbb.itisproxyloader.ItisCacheServer path_of_cache_dir [port]\n");
+	System.exit(42);
+    }
+
+    public static final void main(final String[] args) {
+	if(args.length < 1 || args.length > 2){
+	    System.err.println("\n\tERROR: Incorrect # of arguments\n");
+	    usage();
+	}
+	int port = DEFAULT_PORT;
+	if(args.length == 2){
+	    try{
+		port = Integer.parseInt(args[1]);
+	    }catch(NumberFormatException e){
+		System.err.println("\n\tERROR: Bad port: " + args[1]);
+		usage();
+	    }
+	}
+	try{
+	    ItisCacheServer server = new ItisCacheServer(args[0]);
+	    server.start(port);
+	    System.out.println("ItisCacheServer: serving " + args[0] + " on port " + port);
+	}catch(Throwable t){
+	    t.printStackTrace();
+	}
+    }
+
+    // Closes the exchange whatever happens; a failure is a 500 if the response has not been started
+    abstract class Handler implements HttpHandler{
+	final LatencyHistogram latency;
+
+	Handler(final LatencyHistogram latency){
+	    this.latency = latency;
+	}
+
+	abstract void serve(final HttpExchange exchange) throws Exception;
+
+	public final void handle(final HttpExchange exchange) throws IOException{
+	    long start = System.nanoTime();
+	    try{
+		serve(exchange);
+	    }catch(Exception e){
+		e.printStackTrace();
+		if(exchange.getResponseCode() == -1){
+		    sendError(exchange, 500, "Unable to read the cache");
+		}
+	    }finally{
+		exchange.close();
+		if(latency != null){
+		    latency.record(System.nanoTime() - start);
+		}
+	    }
+	}
+    }
+
+    public final void start(final int port) throws IOException{
+	server = HttpServer.create(new InetSocketAddress(port), 0);
+	server.createContext("/tsn/", new Handler(tsnLatency){
+		void serve(final HttpExchange exchange) throws Exception{
+		    String tsn = lastPathElement(exchange);
+		    if(!isTsn(tsn)){
+			sendError(exchange, 400, "Bad tsn: " + tsn);
+			return;
+		    }
+		    ItisRecord ir = lookup(tsn);
+		    if(ir == null){
+			sendError(exchange, 404, "Not found");
+		    }else{
+			sendJson(exchange, ir);
+		    }
+		}
+	    });
+	server.createContext("/hierarchy/", new Handler(hierarchyLatency){
+		void serve(final HttpExchange exchange) throws Exception{
+		    String tsn = lastPathElement(exchange);
+		    if(!isTsn(tsn)){
+			sendError(exchange, 400, "Bad tsn: " + tsn);
+			return;
+		    }
+		    ItisRecord ir = lookup(tsn);
+		    if(ir == null){
+			sendError(exchange, 404, "Not found");
+		    }else{
+			sendJson(exchange, ir.getTaxonomicHierarchy());
+		    }
+		}
+	    });
+	server.createContext("/batch", new Handler(batchLatency){
+		void serve(final HttpExchange exchange) throws Exception{
+		    batch(exchange);
+		}
+	    });
+	server.createContext("/stats", new Handler(null){
+		void serve(final HttpExchange exchange) throws Exception{
+		    String stats = "{\"tsn\":" + tsnLatency.toJson()
+			+ ",\"hierarchy\":" + hierarchyLatency.toJson()
+			+ ",\"batch\":" + batchLatency.toJson()
+			+ "}";
+		    send(exchange, 200, stats);
+		}
+	    });
+	executor = newExecutor();
+	server.setExecutor(executor);
+	server.start();
+
+	if(versioned){
+	    versionPoller = Executors.newSingleThreadScheduledExecutor();
+	    versionPoller.scheduleWithFixedDelay(new Runnable(){
+		    public void run(){
+			checkPublishedVersion();
+		    }
+		}, VERSION_POLL_SECONDS, VERSION_POLL_SECONDS, TimeUnit.SECONDS);
+	}
+    }
+
+    // Opens a newly published version and switches requests over to it
+    final void checkPublishedVersion(){
+	try{
+	    File current = CacheVersions.currentDir(root);
+	    if(current == null || current.equals(cache.dir)){
+		return;
+	    }
+	    System.out.println("ItisCacheServer: switching to published version " + current);
+	    Cache old = cache;
+	    cache = Cache.open(current, true);
+	    old.release();
+	}catch(Throwable t){
+	    t.printStackTrace();
+	}
+    }
+
+    // The bound port, once started (useful when started on port 0)
+    public final int getPort(){
+	return server.getAddress().getPort();
+    }
+
+    public final void stop(){
+	if(server != null){
+	    server.stop(1);
+	    server = null;
+	}
+	if(executor != null){
+	    executor.shutdown();
+	    executor = null;
+	}
+	if(versionPoller != null){
+	    versionPoller.shutdown();
+	    versionPoller = null;
+	}
+	if(!stopped){
+	    stopped = true;
+	    cache.release();
+	}
+    }
+
+    // Virtual thread per request when the JVM has them (Java 21+), otherwise a thread pool sized to the cores
+    static final ExecutorService newExecutor(){
+	try{
+	    return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+	}catch(Exception e){
+	    return Executors.newFixedThreadPool(Math.max(4, 4 * Runtime.getRuntime().availableProcessors()));
+	}
+    }
+
+    static final boolean isTsn(final String tsn){
+	return tsn != null && ExistenceIndex.parseTsn(tsn) >= 0;
+    }
+
+    // Null if the tsn is not in the cache; a failure to read the cache is thrown, not taken for a miss
+    final ItisRecord lookup(final String tsn) throws Exception{
+	if(!isTsn(tsn)){
+	    return null;
+	}
+	Cache c = cache;
+	// Lost a race with a version switch: take the new current cache
+	while(!c.acquire()){
+	    c = cache;
+	}
+	try{
+	    // Negative lookups are answered from memory, without going to BDB
+	    if(c.existenceIndex != null && !c.existenceIndex.exists(tsn)){
+		return null;
+	    }
+	    return read(c, tsn);
+	}finally{
+	    c.release();
+	}
+    }
+
+    ItisRecord read(final Cache c, final String tsn) throws Exception{
+	return c.pi.getByTSN(tsn);
+    }
+
+    final void batch(final HttpExchange exchange) throws Exception{
+	String tsnList;
+	if("POST".equals(exchange.getRequestMethod())){
+	    tsnList = readBody(exchange);
+	}else{
+	    tsnList = queryParameter(exchange, "tsn");
+	}
+	List<String> tsns = new ArrayList<String>();
+	if(tsnList != null){
+	    for(String tsn: tsnList.split("[,\\s]+")){
+		if(tsn.length() > 0){
+		    tsns.add(tsn);
+		}
+	    }
+	}
+	if(tsns.size() > MAX_BATCH_SIZE){
+	    sendError(exchange, 413, "Too many tsns: " + tsns.size() + " > " + MAX_BATCH_SIZE);
+	    return;
+	}
+	for(String tsn: tsns){
+	    if(!isTsn(tsn)){
+		sendError(exchange, 400, "Bad tsn: " + tsn);
+		return;
+	    }
+	}
+
+	// Streamed (chunked) so that large batches are not buffered
+	exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+	exchange.sendResponseHeaders(200, 0);
+	Writer writer = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), UTF8));
+	try{
+	    writer.write('[');
+	    for(int i=0; i<tsns.size(); i++){
+		String tsn = tsns.get(i);
+		if(i > 0){
+		    writer.write(',');
+		}
+		writer.write("{\"tsn\":");
+		GSON.toJson(tsn, writer);
+		writer.write(",\"record\":");
+		ItisRecord ir = lookup(tsn);
+		if(ir == null){
+		    writer.write("null");
+		}else{
+		    GSON.toJson(ir, writer);
+		}
+		writer.write('}');
+	    }
+	    writer.write(']');
+	}finally{
+	    writer.close();
+	}
+    }
+
+    final void sendJson(final HttpExchange exchange, final Object o) throws IOException{
+	send(exchange, 200, GSON.toJson(o));
+    }
+
+    static final void sendError(final HttpExchange exchange, final int status, final String message) throws IOException{
+	send(exchange, status, "{\"error\":" + GSON.toJson(message) + "}");
+    }
+
+    static final void send(final HttpExchange exchange, final int status, final String json) throws IOException{
+	byte[] bytes = json.getBytes(UTF8);
+	exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+	exchange.sendResponseHeaders(status, bytes.length);
+	exchange.getResponseBody().write(bytes);
+    }
+
+    static final String lastPathElement(final HttpExchange exchange){
+	String path = exchange.getRequestURI().getPath();
+	int slash = path.lastIndexOf('/');
+	String last = path.substring(slash + 1);
+	return last.length() == 0? null: last;
+    }
+
+    // Split on the raw query, then decoded, so that an encoded '&' or '=' stays in the value
+    static final String queryParameter(final HttpExchange exchange, final String name) throws IOException{
+	String query = exchange.getRequestURI().getRawQuery();
+	if(query == null){
+	    return null;
+	}
+	for(String pair: query.split("&")){
+	    if(pair.startsWith(name + "=")){
+		return URLDecoder.decode(pair.substring(name.length() + 1), UTF8);
+	    }
+	}
+	return null;
+    }
+
+    static final String readBody(final HttpExchange exchange) throws IOException{
+	BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), UTF8));
+	StringBuilder sb = new StringBuilder();
+	try{
+	    char[] buf = new char[8192];
+	    int n;
+	    while((n = reader.read(buf)) > 0){
+		sb.append(buf, 0, n);
+	    }
+	}finally{
+	    reader.close();
+	}
+	return sb.toString();
+    }
+
+}//
@@ -22,17 +22,28 @@ package ca.gc.agr.mbb.itisproxyloader;
  */
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileLock;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+
+import jdk.jfr.Recording;
 
 import ca.gc.agr.itis.itismodel.ItisRecord;
 import ca.gc.agr.itis.itismodel.TaxonomicRank;
@@ -90,27 +101,165 @@ public class ItisLoader
     static final String DOC_TYPE_PUB = "PUB";
     static final String DOC_TYPE_EXP = "EXP";
 
+    static final String OPTION_PREFIX = "--";
+    static final String OPTION_SNAPSHOT = "--snapshot";
+    static final String OPTION_SKIP_UNCHANGED = "--skip-unchanged";
+    static final String OPTION_ORDER = "--order";
+    static final String OPTION_MEMORY_BUDGET = "--memory-budget";
+    static final String OPTION_VERSIONED = "--versioned";
+    static final String OPTION_VERSION = "--version";
+    static final String OPTION_KEEP = "--keep";
+    static final String OPTION_VERIFY = "--verify";
+    static final String OPTION_KINGDOMS = "--kingdoms";
+    static final String OPTION_MIN_RANK = "--min-rank";
+    static final String OPTION_MAX_RANK = "--max-rank";
+    static final String OPTION_ROOTS = "--roots";
+    static final String OPTION_ACCEPTED_ONLY = "--accepted-only";
+    static final String OPTION_JFR = "--jfr";
+
+    static final String ORDER_TABLE = "table";
+    static final String ORDER_TREE = "tree";
+
+    // Order the taxonomic_units are loaded in: raw table order (in chunks) or depth first from the kingdoms
+    static String order = ORDER_TABLE;
+
+    // Heap budget in MB that chunk and cache sizes are derived from; 0 means a share of the max heap
+    static long memoryBudgetMB = 0l;
+    static MemoryBudget memoryBudget = null;
+
+    // Versioned builds: cacheDir is then the root holding the versions, see CacheVersions
+    static boolean versioned = false;
+    static String version = null;
+    static int keepVersions = CacheVersions.DEFAULT_KEEP;
+    static File dbFile = null;
+
+    // Optional columnar snapshot of the loaded records, for analytics
+    static String snapshotFile = null;
+    static ColumnarSnapshotWriter snapshotWriter = null;
+
+    // Bitmaps of the tsns written to the cache, saved into the cache dir at the end of the run
+    static ExistenceIndex existenceIndex = null;
+
+    // When rebuilding into an existing cache, do not re-add records whose content hash has not changed
+    static boolean skipUnchanged = false;
+    static RecordHashStore hashStore = null;
+    static long numWritten = 0l;
+    static long numSkipped = 0l;
+    static long numFailed = 0l;
+    // Set when a query of the load fails: some records were not loaded
+    static boolean loadFailed = false;
+
+    // Compare the cache with the source after loading; a versioned build is only published if this passes
+    static boolean verify = false;
+
+    // The cache being loaded: opened once, closed before the indexes and manifest are written
+    static CachingProxyImpl loaderCache = null;
+
+    // Partial loads: which taxonomic_units rows are loaded
+    static LoadFilter filter = new LoadFilter();
+
+    // Flight recording of the loader's events (see LoaderEvents, JfrSummary)
+    static String jfrFile = null;
+
     public static final void usage(){
-	System.err.println("\n\tUsage: java ca.gc.agr.mbb.itisproxyloader.ItisLoader absolute_location_of_ITIS_sqlite_db path_of_cache_dir\n");
+	System.err.println("\n\tUsage: java ca.gc.agr.mbb.itisproxyloader.ItisLoader [options] absolute_location_of_ITIS_sqlite_db path_of_cache_dir\n");
+	System.err.println("\tOptions:");
+	System.err.println("\t  " + OPTION_SNAPSHOT + "=file    also write the loaded records as a compressed columnar snapshot to file");
+	System.err.println("\t  " + OPTION_SKIP_UNCHANGED + "    do not rewrite records that are unchanged since the last load into this cache dir");
+	System.err.println("\t  " + OPTION_ORDER + "=" + ORDER_TABLE + "|" + ORDER_TREE + "    load in table order (default) or depth first tree order");
+	System.err.println("\t  " + OPTION_MEMORY_BUDGET + "=MB    heap budget for fetch windows and caches (default: 75% of max heap)");
+	System.err.println("\t  " + OPTION_VERSIONED + "    build into a new version under the cache dir and publish it when complete");
+	System.err.println("\t  " + OPTION_VERSION + "=name    name of the version (default: date of the ITIS sqlite file)");
+	System.err.println("\t  " + OPTION_KEEP + "=N    number of versions to keep (default: " + CacheVersions.DEFAULT_KEEP + ")");
+	System.err.println("\t  " + OPTION_VERIFY + "    after loading, verify the cache against the source (a failed versioned build is not published)");
+	filterUsage();
+	System.err.println("\t  " + OPTION_JFR + "=file    record the loader's JFR events per stage to file (summarize with JfrSummary)\n");
 	System.exit(42);
     }
 
+    static final void filterUsage(){
+	System.err.println("\t  " + OPTION_KINGDOMS + "=id,id,...    only load these kingdom_ids");
+	System.err.println("\t  " + OPTION_MIN_RANK + "=rank_id    only load rank_id >= this");
+	System.err.println("\t  " + OPTION_MAX_RANK + "=rank_id    only load rank_id <= this");
+	System.err.println("\t  " + OPTION_ROOTS + "=tsn,tsn,...    only load the subtrees of these tsns (implies " + OPTION_ORDER + "=" + ORDER_TREE + ")");
+	System.err.println("\t  " + OPTION_ACCEPTED_ONLY + "    only load accepted/valid names");
+    }
+
+    // Sets the filter from one of the filter options; false if the key is not one or the value is bad.
+    // Shared with CacheVerifier, which must be given the filter the cache was loaded with
+    static final boolean parseFilterOption(final LoadFilter filter, final String key, final String value){
+	if(key.equals(OPTION_KINGDOMS) && LoadFilter.parseInts(value) != null){
+	    filter.kingdomIds = LoadFilter.parseInts(value);
+	}else if(key.equals(OPTION_MIN_RANK) && value != null && value.matches("[0-9]+")){
+	    filter.minRankId = Integer.parseInt(value);
+	}else if(key.equals(OPTION_MAX_RANK) && value != null && value.matches("[0-9]+")){
+	    filter.maxRankId = Integer.parseInt(value);
+	}else if(key.equals(OPTION_ROOTS) && LoadFilter.parseInts(value) != null){
+	    filter.rootTsns = LoadFilter.parseInts(value);
+	}else if(key.equals(OPTION_ACCEPTED_ONLY) && value == null){
+	    filter.acceptedOnly = true;
+	}else{
+	    return false;
+	}
+	return true;
+    }
+
+    // Consumes --key=value options, returns the remaining positional arguments
+    static final List<String> parseOptions(final String[] args){
+	List<String> positional = new ArrayList<String>();
+	for(String arg: args){
+	    if(!arg.startsWith(OPTION_PREFIX)){
+		positional.add(arg);
+		continue;
+	    }
+	    int eq = arg.indexOf('=');
+	    String key = eq < 0? arg: arg.substring(0, eq);
+	    String value = eq < 0? null: arg.substring(eq + 1);
+	    if(key.equals(OPTION_SNAPSHOT) && value != null && value.length() > 0){
+		snapshotFile = value;
+	    }else if(key.equals(OPTION_SKIP_UNCHANGED) && value == null){
+		skipUnchanged = true;
+	    }else if(key.equals(OPTION_ORDER) && (ORDER_TABLE.equals(value) || ORDER_TREE.equals(value))){
+		order = value;
+	    }else if(key.equals(OPTION_MEMORY_BUDGET) && value != null && value.matches("[0-9]+")){
+		memoryBudgetMB = Long.parseLong(value);
+	    }else if(key.equals(OPTION_VERSIONED) && value == null){
+		versioned = true;
+	    }else if(key.equals(OPTION_VERSION) && value != null && value.matches("[A-Za-z0-9._-]+")){
+		version = value;
+	    }else if(key.equals(OPTION_KEEP) && value != null && value.matches("[1-9][0-9]*")){
+		keepVersions = Integer.parseInt(value);
+	    }else if(key.equals(OPTION_VERIFY) && value == null){
+		verify = true;
+	    }else if(parseFilterOption(filter, key, value)){
+		// Set in the filter
+	    }else if(key.equals(OPTION_JFR) && value != null && value.length() > 0){
+		jfrFile = value;
+	    }else{
+		System.err.println("\n\tERROR: Unknown or incomplete option: " + arg);
+		usage();
+	    }
+	}
+	return positional;
+    }
+
 
     public static final void main(final String[] args) {
-	if(args.length != 2){
+	List<String> positional = parseOptions(args);
+	if(positional.size() != 2){
 	    System.err.println("\n\tERROR: Incorrect # of arguments\n");
 	    usage();
 	}
 
-	String dbFileName = args[0];
-	File dbFile = new File(dbFileName);
+	String dbFileName = positional.get(0);
+	dbFile = new File(dbFileName);
 	if(!dbFile.exists() || !dbFile.canRead()){
 	    System.err.println("\n\tERROR: Does not exist, or cannot read, db file: " + dbFileName);
 	    usage();
 	}
 
 	url += dbFileName;
-	cacheDir = args[1];
+	cacheDir = positional.get(1);
 	try{
 	    try {
 		Class.forName(DRIVER_NAME).newInstance();
@@ -167,19 +316,178 @@ public class ItisLoader
 	    e.printStackTrace();
 	    return;
 	}
+	Recording recording = null;
+	// Versioned build: deleted unless it is published
+	File buildDir = null;
+	FileLock buildLock = null;
+	boolean published = false;
 	try
 	    {
-		// We have to do this in chunks because if we do it in all one select, the driver throws a OOM exception
-		int chunkSize = 4000;
-		int numRecords = getNumRecords();
+		if(jfrFile != null){
+		    recording = LoaderEvents.startRecording(jfrFile);
+		    System.out.println("****************Recording JFR events to: " + jfrFile);
+		}
+		File cacheRoot = null;
+		if(versioned){
+		    cacheRoot = new File(cacheDir);
+		    String name = version != null? version: (dbFile != null? CacheVersions.defaultVersion(dbFile): CacheVersions.defaultVersion(cacheRoot));
+		    buildDir = CacheVersions.newVersionDir(cacheRoot, name);
+		    // So that a concurrent prune does not take the build for a failed one
+		    buildLock = CacheVersions.lockInUse(buildDir);
+		    cacheDir = buildDir.getPath();
+		    System.out.println("****************Building version: " + cacheDir);
+		    if(skipUnchanged){
+			System.err.println("Ignoring " + OPTION_SKIP_UNCHANGED + ": a new version starts from an empty cache");
+			skipUnchanged = false;
+		    }
+		}
+
+		memoryBudget = new MemoryBudget(memoryBudgetMB * 1024l * 1024l);
+		System.out.println("****************Memory: " + memoryBudget);
+		publicationCache = lruCache(memoryBudget.documentCacheSize());
+		expertCache = lruCache(memoryBudget.documentCacheSize());
+		otherSourceCache = lruCache(memoryBudget.documentCacheSize());
+
+		synonymIndex = SynonymIndex.build(connection);
+		synonymNames = SynonymNames.build(connection);
+		System.out.println("****************Synonym links: " + synonymIndex.numLinks() + "  linked names: " + synonymNames.size());
+		vernacularStore = VernacularStore.build(connection);
+		System.out.println("****************Vernaculars: " + vernacularStore.numVernaculars() + "  tsns: " + vernacularStore.numTsns()
+				   + "  distinct strings: " + vernacularStore.numStrings());
+
+		if(snapshotFile != null){
+		    snapshotWriter = new ColumnarSnapshotWriter(new File(snapshotFile), memoryBudget.snapshotRowGroupSize());
+		}
+		existenceIndex = new ExistenceIndex();
+		if(skipUnchanged){
+		    hashStore = RecordHashStore.load(new File(cacheDir));
+		    System.out.println("****************Record hashes from previous load: " + hashStore.numPrevious());
+		}
+		if(filter.hasRoots() && !order.equals(ORDER_TREE)){
+		    System.out.println("****************Loading subtrees of " + OPTION_ROOTS + ": using tree order");
+		    order = ORDER_TREE;
+		}
+		System.out.println("****************Filter: " + filter);
+		long startTime = System.currentTimeMillis();
 		long numActualRecords = 0l;
-		for(int i=0; i<numRecords; i+= chunkSize){
-		    numActualRecords += getRecords(url, cacheDir, i, chunkSize);
+		if(order.equals(ORDER_TREE)){
+		    numActualRecords = getRecordsInTreeOrder(url, cacheDir);
+		    if(!filter.hasRoots()){
+			int numRecords = getNumRecords();
+			if(numActualRecords != numRecords){
+			    System.err.println("****************Tree order loaded " + numActualRecords + " records, taxonomic_units has " + numRecords);
+			}
+		    }
+		}else{
+		    // We have to do this in chunks because if we do it in all one select, the driver throws a OOM exception
+		    // The chunk size starts from the memory budget and adapts to the heap usage after each chunk
+		    int chunkSize = memoryBudget.initialChunkSize();
+		    int numRecords = getNumRecords();
+		    for(int i=0; i<numRecords; ){
+			numActualRecords += getRecords(url, cacheDir, i, chunkSize);
+			i += chunkSize;
+			chunkSize = memoryBudget.adjustChunkSize(chunkSize);
+		    }
 		}
+		double seconds = ((double)(System.currentTimeMillis() - startTime))/1000.0;
 		System.out.println("****************Actual number of records added: " + numActualRecords);
+		System.out.println("****************Load order: " + order + "  seconds: " + seconds 
+				   + "  records/second: " + (seconds > 0? numActualRecords/seconds: 0));
+		System.out.println("****************Memory pressure, chunk or cache shrinks: " + memoryBudget.getNumShrinks());
+		System.out.println("****************Records written: " + numWritten + "  unchanged, skipped: " + numSkipped + "  failed: " + numFailed);
+		// The BDB environment is closed before anything else reads or checksums its files
+		boolean cacheClosed = closeLoaderCache();
+		existenceIndex.save(new File(cacheDir));
+		synonymIndex.write(new File(cacheDir));
+		vernacularStore.write(new File(cacheDir));
+		if(hashStore != null){
+		    hashStore.save(new File(cacheDir), !filter.isEmpty(), cacheClosed);
+		}
+
+		boolean verified = true;
+		if(verify){
+		    CacheVerifier verifier = new CacheVerifier(url, cacheDir, CacheVerifier.DEFAULT_SAMPLE_EVERY, Runtime.getRuntime().availableProcessors());
+		    verifier.setFilter(filter);
+		    verified = verifier.verify();
+		}
+
+		boolean complete = !loadFailed && numFailed == 0l;
+		if(!complete){
+		    System.err.println("****************Load incomplete: " + numFailed + " records failed" + (loadFailed? ", a query failed": ""));
+		}
+		if(versioned && !complete){
+		    System.err.println("****************Load incomplete: not publishing " + cacheDir);
+		}else if(versioned && !verified){
+		    System.err.println("****************Verification failed: not publishing " + cacheDir);
+		}else if(versioned){
+		    File versionDir = new File(cacheDir);
+		    Map<String, String> stats = new HashMap<String, String>();
+		    stats.put("source", String.valueOf(dbFile));
+		    stats.put("records.added", Long.toString(numActualRecords));
+		    stats.put("records.written", Long.toString(numWritten));
+		    stats.put("records.failed", Long.toString(numFailed));
+		    stats.put("tsns", Long.toString(existenceIndex.size()));
+		    stats.put("tsns.accepted", Long.toString(existenceIndex.numAccepted()));
+		    stats.put("tsns.unaccepted", Long.toString(existenceIndex.numUnaccepted()));
+		    CacheVersions.writeManifest(versionDir, stats);
+		    CacheVersions.publish(cacheRoot, versionDir.getName());
+		    published = true;
+		    System.out.println("****************Published version: " + versionDir.getName());
+		    List<String> deleted = CacheVersions.prune(cacheRoot, keepVersions);
+		    if(deleted.size() > 0){
+			System.out.println("****************Deleted old versions: " + deleted);
+		    }
+		}
+		System.out.println("****************Existence index: " + existenceIndex.size() + " tsns, "
+				   + existenceIndex.numAccepted() + " accepted, "
+				   + existenceIndex.numUnaccepted() + " unaccepted");
+	    }
+	catch(IOException e)
+	    {
+		e.printStackTrace();
+	    }
+	catch(SQLException e)
+	    {
+		e.printStackTrace();
 	    }
 	finally
 	    {
+		if(recording != null){
+		    try{
+			recording.stop();
+			System.out.println("****************JFR recording written to " + jfrFile 
+					   + "; summarize with: java ca.gc.agr.mbb.itisproxyloader.JfrSummary " + jfrFile);
+		    }catch(Exception e){
+			e.printStackTrace();
+		    }
+		    recording.close();
+		}
+		closeLoaderCache();
+		if(snapshotWriter != null){
+		    try{
+			snapshotWriter.close();
+			System.out.println("****************Snapshot rows written to " + snapshotFile + ": " + snapshotWriter.getNumRows());
+		    }catch(IOException e){
+			e.printStackTrace();
+		    }
+		    snapshotWriter = null;
+		}
+		if(buildLock != null){
+		    try{
+			buildLock.channel().close();
+		    }catch(IOException e){
+			e.printStackTrace();
+		    }
+		}
+		// A failed build would otherwise stay in versions/ for good
+		if(buildDir != null && !published){
+		    System.err.println("****************Deleting failed build: " + buildDir);
+		    try{
+			CacheVersions.deleteRecursively(buildDir);
+		    }catch(IOException e){
+			e.printStackTrace();
+		    }
+		}
 		try
 		    {
 			if(connection != null)
@@ -196,7 +504,7 @@ public class ItisLoader
 
     int getNumRecords(){
 	String count = "count";
-	String sql = "select count(tsn) as " + count + " from taxonomic_units;";
+	String sql = "select count(tsn) as " + count + " from taxonomic_units" + filter.sqlWhere() + ";";
 	Statement statement = null;
 	ResultSet rs = null;
 	try{
@@ -206,24 +514,35 @@ public class ItisLoader
 	    return rs.getInt(count);
 	}catch(Exception e){
 	    e.printStackTrace();
+	    loadFailed = true;
 	}finally{
 	    closeAll(statement, rs);
 	}
 	return 0;
     }
 
+    // Built in one scan of vernaculars (see VernacularStore): the common names of a tsn are shared by
+    // every hierarchy it appears in instead of being queried and copied for each record
+    static VernacularStore vernacularStore = null;
+
     public static final Map<String, List<String>> getCommonNames(final Connection connection, final String tsn){
+	if(tsn != null && vernacularStore != null){
+	    return vernacularStore.commonNames(ExistenceIndex.parseTsn(tsn));
+	}
 	Map<String, List<String>> cm = new HashMap<String, List<String>>();
 	if(tsn == null){
 	    return cm;
 	}
 	Statement statement = null;
 	ResultSet rs = null;
+	LoaderEvents.Sql event = LoaderEvents.beginSql("getCommonNames", "vernaculars");
+	int rows = 0;
 
 	try{
 	    statement = connection.createStatement();
 	    rs = statement.executeQuery("select language, vernacular_name from vernaculars where tsn=" + tsn);
 	    while(rs.next()){
+		++rows;
 		String lang = rs.getString("language");
 		String vernacular = rs.getString("vernacular_name");
 		List<String> verns = null;
@@ -239,61 +558,65 @@ public class ItisLoader
 	    e.printStackTrace();
 	}finally{
 	    closeAll(statement, rs);
+	    LoaderEvents.endSql(event, rows);
 	}
 	return cm;
     }
 
+    // Walks up the parent_tsns one query per level, then returns the ranks kingdom first; stops at a tsn
+    // it has already seen, so that a cycle in parent_tsn does not loop forever
     public static List<TaxRank> getHierarchyAbove(final Connection connection, final String tsn )throws SQLException{
 	List<TaxRank> listRank = new ArrayList<TaxRank>();
-	if(tsn == null){
-	    return listRank;
-	}
-	String sql = "select * from taxonomic_units where tsn=" + tsn;
-	Statement statement = null;
-	ResultSet rs = null;
-	try{
-	    statement = connection.createStatement();
-	    rs = statement.executeQuery(sql);
-	    while(rs.next()){
-		String parentTsn = rs.getString("parent_tsn");
-		String thisTsn = rs.getString("tsn");
-		listRank.addAll(getHierarchyAbove(connection, parentTsn));
-		
-		TaxRank tr = new TaxRank();
-		listRank.add(tr);
-		tr.tsn = thisTsn;
-		
-		tr.commonNames = getCommonNames(connection, thisTsn);
-		tr.rankId = rs.getString("rank_id");
-		tr.rankName = makeRankName(connection, tr.rankId);
-		tr.rankValue = rs.getString("complete_name");
-		tr.kingdomId = rs.getString("kingdom_id");
-		tr.kingdomName = getKingdom(connection, tr.kingdomId);
-		
-		/*
-		  System.out.println("##  << tsn=" + tr.tsn 
-		  + " rankId=" + tr.rankId 
-		  + " rankName= " + tr.rankName 
-		  + " rankValue= " + tr.rankValue
-		  + " completeName= " + rs.getString("complete_name")
-		  + "   kingdomId= " + tr.kingdomId
-		  + "   kingdomName= " + tr.kingdomName);
-		*/
-		
+	Set<String> seen = new HashSet<String>();
+	String thisTsn = tsn;
+	while(thisTsn != null){
+	    if(!seen.add(thisTsn)){
+		System.err.println("getHierarchyAbove: cycle in parent_tsn at tsn=" + thisTsn + ", hierarchy above " + tsn + " cut there");
+		break;
 	    }
+	    String sql = "select * from taxonomic_units where tsn=" + thisTsn;
+	    TaxRank tr = null;
+	    String parentTsn = null;
+	    Statement statement = null;
+	    ResultSet rs = null;
+	    LoaderEvents.Sql event = LoaderEvents.beginSql("getHierarchyAbove", "taxonomic_units");
+	    try{
+		statement = connection.createStatement();
+		rs = statement.executeQuery(sql);
+		if(rs.next()){
+		    tr = new TaxRank();
+		    tr.tsn = rs.getString("tsn");
+		    tr.rankId = rs.getString("rank_id");
+		    tr.rankValue = rs.getString("complete_name");
+		    tr.kingdomId = rs.getString("kingdom_id");
+		    parentTsn = rs.getString("parent_tsn");
+		}
+	    }
+	    finally{
+		closeAll(statement, rs);
+		LoaderEvents.endSql(event, tr == null? 0: 1);
+	    }
+	    if(tr == null){
+		break;
+	    }
+	    // Looked up once the row is read, so that these queries are not part of the event of this one
+	    tr.commonNames = getCommonNames(connection, tr.tsn);
+	    tr.rankName = makeRankName(connection, tr.rankId);
+	    tr.kingdomName = getKingdom(connection, tr.kingdomId);
+	    listRank.add(tr);
+	    thisTsn = parentTsn;
 	}
-	finally{
-	    closeAll(statement, rs);
-	}
+	Collections.reverse(listRank);
 	return listRank;
     }
 
-    static Map<String, String> idRankNameCache = new HashMap<String, String>();
+    static Map<String, String> idRankNameCache = Collections.synchronizedMap(new HashMap<String, String>());
     static final String makeRankName(final Connection connection, final String rankId){
-	String value = (String)cacheLookup(idRankNameCache, rankId);
+	String value = cacheLookup(idRankNameCache, rankId);
 	if(value == null){
 	    Statement statement = null;
 	    ResultSet rs = null;
+	    LoaderEvents.Sql event = LoaderEvents.beginSql("makeRankName", "taxon_unit_types");
 	    try{
 		String sql = "select rank_name from taxon_unit_types where rank_id=" + rankId;
 		statement = connection.createStatement();
@@ -307,19 +630,21 @@ public class ItisLoader
 	    }
 	    finally{
 		closeAll(statement, rs);
+		LoaderEvents.endSql(event, value == null? 0: 1);
 	    }
 	}
 	return value;
     }
 
 
-    static Map<String, String> idKingdomCache = new HashMap<String, String>();
+    static Map<String, String> idKingdomCache = Collections.synchronizedMap(new HashMap<String, String>());
 
     public static String getKingdom(final Connection connection, final String id){
-	String value = (String)cacheLookup(idKingdomCache, id);
+	String value = cacheLookup(idKingdomCache, id);
 	if(value == null){
 	    Statement statement = null;
 	    ResultSet rs = null;
+	    LoaderEvents.Sql event = LoaderEvents.beginSql("getKingdom", "kingdoms");
 	    try{
 		String sql = "select kingdom_name from kingdoms where kingdom_id=" + id;
 		System.out.println("getKingdom: " + sql);
@@ -339,12 +664,13 @@ public class ItisLoader
 	    }
 	    finally{
 		closeAll(statement, rs);
+		LoaderEvents.endSql(event, value == null? 0: 1);
 	    }
 	}
 	return value;
     }
 
-    static Object cacheLookup(Map map, Object key){
+    static <K, V> V cacheLookup(final Map<K, V> map, final K key){
 	if(map.containsKey(key)){
 	    return map.get(key);
 	}
@@ -355,42 +681,46 @@ public class ItisLoader
     public static List<TaxRank> getHierarchyOneLevelDown(final Connection connection, final String tsn)throws SQLException{
 	List<TaxRank> belowRanks = new ArrayList<TaxRank>(15);
 	if(tsn != null){
-	    Statement statement = connection.createStatement();
-	    String sql = "select * from taxonomic_units where parent_tsn=" + tsn;
-	    System.out.println(sql);
-	    ResultSet rs = statement.executeQuery(sql);
-	    while(rs.next()){
-		TaxRank tr = new TaxRank();
-		tr.tsn = rs.getString("tsn");
-		tr.rankId = rs.getString("rank_id");
-		tr.commonNames = getCommonNames(connection, tr.tsn);
-		tr.rankName = makeRankName(connection, tr.rankId);
-		//tr.rankValue = rs.getString("unit_name1");
-		tr.rankValue = rs.getString("complete_name");
-		tr.kingdomId = rs.getString("kingdom_id");
-		tr.kingdomName = getKingdom(connection, tr.kingdomId);
-		belowRanks.add(tr);
-		/*
-		System.out.println("##    >>>   tsn=" + tr.tsn 
-				   + " rankId=" + tr.rankId 
-				   + " rankName= " + tr.rankName 
-				   + " rankValue= " + tr.rankValue
-				   + " completeName= " + rs.getString("complete_name")
-				   + "   kingdomId= " + tr.kingdomId
-				   + "   kingdomName= " + tr.kingdomName);
-		*/
-	    }
-	    rs.close();
-	    statement.close();
+	    LoaderEvents.Sql event = LoaderEvents.beginSql("getHierarchyOneLevelDown", "taxonomic_units");
+	    Statement statement = null;
+	    ResultSet rs = null;
+	    try{
+		statement = connection.createStatement();
+		String sql = "select * from taxonomic_units where parent_tsn=" + tsn;
+		System.out.println(sql);
+		rs = statement.executeQuery(sql);
+		while(rs.next()){
+		    TaxRank tr = new TaxRank();
+		    tr.tsn = rs.getString("tsn");
+		    tr.rankId = rs.getString("rank_id");
+		    tr.commonNames = getCommonNames(connection, tr.tsn);
+		    tr.rankName = makeRankName(connection, tr.rankId);
+		    //tr.rankValue = rs.getString("unit_name1");
+		    tr.rankValue = rs.getString("complete_name");
+		    tr.kingdomId = rs.getString("kingdom_id");
+		    tr.kingdomName = getKingdom(connection, tr.kingdomId);
+		    belowRanks.add(tr);
+		    /*
+		    System.out.println("##    >>>   tsn=" + tr.tsn 
+				       + " rankId=" + tr.rankId 
+				       + " rankName= " + tr.rankName 
+				       + " rankValue= " + tr.rankValue
+				       + " completeName= " + rs.getString("complete_name")
+				       + "   kingdomId= " + tr.kingdomId
+				       + "   kingdomName= " + tr.kingdomName);
+		    */
+		}
+	    }finally{
+		closeAll(statement, rs);
+		LoaderEvents.endSql(event, belowRanks.size());
+	    }
 	}
 	return belowRanks;
     }
 
 
 
-    static long getRecords(final String url, final String cacheDir, final long start, final long end){
-	System.out.println("getRecords: " + start + " " + end);
-
+    static final CachingProxyImpl openCache(final String cacheDir){
 	Properties p = new Properties();
 	p.setProperty(CachingProxyImpl.CACHE_LOCATION_KEY, cacheDir);
 	p.setProperty(ProxyImpl.NO_CACHING_KEY, "true");
@@ -399,11 +729,58 @@ public class ItisLoader
 
 	CachingProxyImpl pi = new CachingProxyImpl((ProxyImpl)ProxyImpl.instance(p));
 	pi.init(p);
+	return pi;
+    }
+
+    static final CachingProxyImpl loaderCache(final String cacheDir){
+	if(loaderCache == null){
+	    loaderCache = openCache(cacheDir);
+	}
+	return loaderCache;
+    }
+
+    static final boolean closeLoaderCache(){
+	boolean closed = true;
+	if(loaderCache != null){
+	    closed = closeCache(loaderCache);
+	    loaderCache = null;
+	}
+	return closed;
+    }
+
+    // Closes the BDB environment of a cache opened with openCache. The itisproxy versions this builds
+    // against do not all declare a close() on CachingProxyImpl, so it is looked up rather than called:
+    // without one the environment is only closed when the JVM exits, and that is reported.
+    // Returns whether the environment was closed
+    static final boolean closeCache(final CachingProxyImpl pi){
+	Method close;
+	try{
+	    close = pi.getClass().getMethod("close");
+	}catch(NoSuchMethodException e){
+	    System.err.println("closeCache: this itisproxy has no CachingProxyImpl.close(); the cache is closed when the JVM exits");
+	    return false;
+	}
+	try{
+	    close.invoke(pi);
+	    return true;
+	}catch(IllegalAccessException e){
+	    e.printStackTrace();
+	}catch(InvocationTargetException e){
+	    e.getCause().printStackTrace();
+	}
+	return false;
+    }
+
+    static long getRecords(final String url, final String cacheDir, final long start, final long end){
+	System.out.println("getRecords: " + start + " " + end);
+
+	CachingProxyImpl pi = loaderCache(cacheDir);
 	long numActualRecords = 0l;
 	try
 	    {
 		//Connection connection = DriverManager.getConnection(url);
-		String query = "select * from taxonomic_units  limit " + start + ", " + end;
+		// Ordered, so that consecutive pages neither overlap nor skip rows
+		String query = "select * from taxonomic_units " + filter.sqlWhere() + " order by tsn limit " + start + ", " + end;
 
 		System.out.println("getRecords: "  + query);
 		Statement statement = connection.createStatement();
@@ -431,117 +808,404 @@ public class ItisLoader
 			    now = System.currentTimeMillis();
 			}
 	
-			FullRecord rec = new FullRecord();
+			loadRow(pi, connection2, TaxonRow.from(rs));
+		    }
+		closeAll(statement, rs);
+		//if(connection2 != null){
+		//connection2.close();
+		//}
+		System.out.flush();
 
-			// read the result set
-			String tsn = rs.getString("tsn");
-			rec.tsn = tsn;
-			
+	    }
+	catch(SQLException e)
+	    {
+		// if the error message is "out of memory", 
+		// it probably means no database file is found
+		System.err.println(e.getMessage());
+		e.printStackTrace();
+		loadFailed = true;
+	    }
+	return numActualRecords;
+    }
 
-			rec.kingdom.kingdomId = rs.getString("kingdom_id");
-			rec.kingdom.kingdomName = getKingdom(connection, rec.kingdom.kingdomId);
-			Usage usage = new Usage();
-			usage.taxonUsageRating = rs.getString("name_usage");
-			rec.usage = usage;
-
-			UnacceptReason unacceptReason = new UnacceptReason();
-			unacceptReason.unacceptReason = rs.getString("unaccept_reason");
-			rec.unacceptReason = unacceptReason;
-
-			CurrencyRating currencyRating = new CurrencyRating();
-			currencyRating.taxonCurrency = rs.getString("currency_rating");
-			currencyRating.rankId = rs.getString("rank_id");
-			rec.currencyRating = currencyRating;
-			rec.completenessRating.completeness = rs.getString("completeness_rtng");
-			rec.completenessRating.rankId = currencyRating.rankId;
-
-			CredibilityRating credibilityRating = new CredibilityRating();
-			credibilityRating.credRating = rs.getString("credibility_rtng");
-			rec.credibilityRating = credibilityRating;
-			
-			rec.taxRank.kingdomId = rec.kingdom.kingdomId;
-			rec.taxRank.kingdomName = rec.kingdom.kingdomName;
-			rec.taxRank.rankId = rs.getString("rank_id");
-			rec.taxRank.rankName = makeRankName(connection, rec.taxRank.rankId);
-
-			String parentTsn = rs.getString("parent_tsn");
-			rec.parentTsn.parentTsn = parentTsn;
-
-			ScientificName sn = new ScientificName();
-			rec.scientificName = sn;
-			sn.combinedName = rs.getString("complete_name");
-			sn.unitInd1 = rs.getString("unit_ind1");
-			sn.unitInd2 = rs.getString("unit_ind2");
-			sn.unitInd3 = rs.getString("unit_ind3");
-			sn.unitInd4 = rs.getString("unit_ind4");
-			sn.unitName1 = rs.getString("unit_name1");
-			sn.unitName2 = rs.getString("unit_name2");
-			sn.unitName3 = rs.getString("unit_name3");
-			sn.unitName4 = rs.getString("unit_name4");
-
-			sn.author = makeScientificNameAuthor(connection, tsn);
-
-			String taxonAuthorId = rs.getString("taxon_author_id");
-			
-			rec.jurisdictionalOriginList = makeJurisdictionalOrigins(connection, tsn);;
+    // Table order: the hierarchy above each record is queried
+    static final void loadRow(final CachingProxyImpl pi, final Connection connection, final TaxonRow row) throws SQLException{
+	FullRecord rec = makeFullRecord(connection, row);
+
+	LoaderEvents.Hierarchy hierarchyEvent = LoaderEvents.begin(new LoaderEvents.Hierarchy());
+	List<TaxRank> aboveRanks = null;
+	try{
+	    aboveRanks = getHierarchyAbove(connection, row.parentTsn);
+	}finally{
+	    hierarchyEvent.tsn = row.tsn;
+	    hierarchyEvent.how = "query";
+	    hierarchyEvent.depth = aboveRanks == null? 0: aboveRanks.size();
+	    LoaderEvents.end(hierarchyEvent);
+	    hierarchyEvent.commit();
+	}
+
+	List<TaxRank> belowRanks = getHierarchyOneLevelDown(connection, row.tsn);
+
+	addRecord(pi, rec, aboveRanks, belowRanks);
+    }
+
+    // Depth first from the kingdoms (and any orphans), so the ancestors of a record are a stack
+    // shared by all of its descendants instead of being re-queried for every record
+    static final String ROOTS_SQL = "select * from taxonomic_units where parent_tsn is null or parent_tsn=0"
+	+ " or parent_tsn not in (select tsn from taxonomic_units)";
+
+    static long getRecordsInTreeOrder(final String url, final String cacheDir){
+	String rootsSql = ROOTS_SQL;
+	if(filter.hasRoots()){
+	    rootsSql = "select * from taxonomic_units where tsn in (" + LoadFilter.join(filter.rootTsns) + ")";
+	}
+	System.out.println("getRecordsInTreeOrder: " + rootsSql);
 
-			/////
-			List<TaxRank> aboveRanks = getHierarchyAbove(connection2, parentTsn);
+	CachingProxyImpl pi = loaderCache(cacheDir);
+	long numActualRecords = 0l;
+	try
+	    {
+		List<TaxonRow> roots = getTaxonRows(connection, rootsSql);
+		TsnBitmap visited = new TsnBitmap();
+		for(TaxonRow root: roots){
+		    if(filter.prunes(root)){
+			continue;
+		    }
+		    // A root given with --roots may be anywhere in the tree: start with its real ancestors
+		    List<TaxRank> ancestors = new ArrayList<TaxRank>(32);
+		    ancestors.addAll(getHierarchyAbove(connection, root.parentTsn));
+		    numActualRecords += visit(pi, root, makeTaxRank(connection, root), ancestors, visited);
+		}
+		if(!filter.hasRoots()){
+		    numActualRecords += loadUnreached(pi, visited);
+		}else if(filter.numNestingViolations > 0){
+		    System.err.println("getRecordsInTreeOrder: " + filter.numNestingViolations + " rows not nested in their parents: "
+				       + "rows below pruned subtrees of the roots may be missing");
+		}
+		System.out.flush();
+	    }
+	catch(SQLException e)
+	    {
+		System.err.println(e.getMessage());
+		e.printStackTrace();
+		loadFailed = true;
+	    }
+	return numActualRecords;
+    }
+
+    static final int MEMORY_CHECK_INTERVAL = 1000;
+
+    // One level of the walk: the children of a visited row, and the next one to visit
+    static final class Frame{
+	final List<TaxonRow> children;
+	final List<TaxRank> belowRanks;
+	final boolean loaded;
+	int next = 0;
+
+	Frame(final List<TaxonRow> children, final List<TaxRank> belowRanks, final boolean loaded){
+	    this.children = children;
+	    this.belowRanks = belowRanks;
+	    this.loaded = loaded;
+	}
+    }
+
+    // Walks the subtree of row with an explicit stack of Frames rather than one call per level;
+    // ancestors holds the ranks above the row being visited
+    static long visit(final CachingProxyImpl pi, final TaxonRow row, final TaxRank self, final List<TaxRank> ancestors, final TsnBitmap visited) throws SQLException{
+	Frame frame = enter(pi, row, self, ancestors, visited);
+	if(frame == null){
+	    return 0l;
+	}
+	long n = frame.loaded? 1l: 0l;
+	ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+	stack.push(frame);
+	while(!stack.isEmpty()){
+	    Frame top = stack.peek();
+	    if(top.next == top.children.size()){
+		stack.pop();
+		ancestors.remove(ancestors.size() - 1);
+		continue;
+	    }
+	    int i = top.next++;
+	    // The below ranks stay complete, but subtrees that cannot contain anything to load are not walked
+	    if(filter.prunes(top.children.get(i))){
+		continue;
+	    }
+	    Frame child = enter(pi, top.children.get(i), top.belowRanks.get(i), ancestors, visited);
+	    if(child != null){
+		if(child.loaded){
+		    ++n;
+		}
+		stack.push(child);
+	    }
+	}
+	return n;
+    }
 
-			List<TaxRank> belowRanks = getHierarchyOneLevelDown(connection2, tsn);
+    // Loads the row if the filter accepts it and pushes it onto the ancestors; null if already visited
+    static final Frame enter(final CachingProxyImpl pi, final TaxonRow row, final TaxRank self, final List<TaxRank> ancestors, final TsnBitmap visited) throws SQLException{
+	int t = ExistenceIndex.parseTsn(row.tsn);
+	if(t < 0 || !visited.add(t)){
+	    System.err.println("visit: skipping tsn already loaded (cycle?) or bad tsn: " + row.tsn);
+	    return null;
+	}
+	progress();
+	// Once per collection that leaves the heap near the budget: the caches refill as the walk goes on
+	if(memoryBudget != null && numProgress % MEMORY_CHECK_INTERVAL == 0 && memoryBudget.underPressure()){
+	    publicationCache.clear();
+	    expertCache.clear();
+	    otherSourceCache.clear();
+	}
+
+	// Same query as getHierarchyOneLevelDown, so the below ranks come out in the same order
+	List<TaxonRow> children = getTaxonRows(connection, "select * from taxonomic_units where parent_tsn=" + row.tsn);
+	List<TaxRank> belowRanks = new ArrayList<TaxRank>(children.size());
+	for(TaxonRow child: children){
+	    filter.checkNesting(row, child);
+	    belowRanks.add(makeTaxRank(connection, child));
+	}
+
+	boolean loaded = false;
+	if(filter.accepts(row)){
+	    FullRecord rec = makeFullRecord(connection, row);
+	    LoaderEvents.Hierarchy hierarchyEvent = LoaderEvents.begin(new LoaderEvents.Hierarchy());
+	    List<TaxRank> aboveRanks = new ArrayList<TaxRank>(ancestors);
+	    hierarchyEvent.tsn = row.tsn;
+	    hierarchyEvent.how = "stack";
+	    hierarchyEvent.depth = aboveRanks.size();
+	    LoaderEvents.end(hierarchyEvent);
+	    hierarchyEvent.commit();
+	    addRecord(pi, rec, aboveRanks, belowRanks);
+	    loaded = true;
+	}
+	ancestors.add(self);
+	return new Frame(children, belowRanks, loaded);
+    }
+
+    static final int UNREACHED_BATCH_SIZE = 500;
+    static final int UNREACHED_REPORT_MAX = 20;
+
+    // Rows the walk from ROOTS_SQL did not reach (parent_tsn cycles, or below a pruned row that still had
+    // loadable descendants): reported, then loaded in table order
+    static long loadUnreached(final CachingProxyImpl pi, final TsnBitmap visited) throws SQLException{
+	List<String> unreached = new ArrayList<String>();
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery("select tsn from taxonomic_units" + filter.sqlWhere() + " order by tsn");
+	try{
+	    while(rs.next()){
+		String tsn = rs.getString(1);
+		int t = ExistenceIndex.parseTsn(tsn);
+		if(t >= 0 && !visited.contains(t)){
+		    unreached.add(tsn);
+		}
+	    }
+	}finally{
+	    closeAll(statement, rs);
+	}
+	if(unreached.size() == 0){
+	    return 0l;
+	}
+	System.err.println("getRecordsInTreeOrder: " + unreached.size() + " tsns not reached from the roots, loading them in table order: "
+			   + unreached.subList(0, Math.min(unreached.size(), UNREACHED_REPORT_MAX))
+			   + (unreached.size() > UNREACHED_REPORT_MAX? " ...": ""));
+	long n = 0l;
+	for(int i=0; i<unreached.size(); i+=UNREACHED_BATCH_SIZE){
+	    List<String> batch = unreached.subList(i, Math.min(unreached.size(), i + UNREACHED_BATCH_SIZE));
+	    String sql = "select * from taxonomic_units where tsn in (" + String.join(",", batch) + ") order by tsn";
+	    for(TaxonRow row: getTaxonRows(connection, sql)){
+		progress();
+		loadRow(pi, connection, row);
+		++n;
+	    }
+	}
+	return n;
+    }
+
+    static final List<TaxonRow> getTaxonRows(final Connection connection, final String sql) throws SQLException{
+	List<TaxonRow> rows = new ArrayList<TaxonRow>();
+	LoaderEvents.Sql event = LoaderEvents.beginSql("getTaxonRows", "taxonomic_units");
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery(sql);
+	try{
+	    while(rs.next()){
+		rows.add(TaxonRow.from(rs));
+	    }
+	}finally{
+	    closeAll(statement, rs);
+	    LoaderEvents.endSql(event, rows.size());
+	}
+	return rows;
+    }
+
+    static final TaxRank makeTaxRank(final Connection connection, final TaxonRow row){
+	TaxRank tr = new TaxRank();
+	tr.tsn = row.tsn;
+	tr.rankId = row.rankId;
+	tr.commonNames = getCommonNames(connection, tr.tsn);
+	tr.rankName = makeRankName(connection, tr.rankId);
+	tr.rankValue = row.completeName;
+	tr.kingdomId = row.kingdomId;
+	tr.kingdomName = getKingdom(connection, tr.kingdomId);
+	return tr;
+    }
+
+    static long numProgress = 0l;
+    static long progressTime = System.currentTimeMillis();
+
+    static final void progress(){
+	++numProgress;
+	if(numProgress %10 == 0){
+	    System.out.print(".");
+	}
+	if(numProgress %100 == 0){
+	    System.out.println(numProgress + " " + ((double)(System.currentTimeMillis()-progressTime))/1000.0);
+	    progressTime = System.currentTimeMillis();
+	}
+    }
+
+    static final FullRecord makeFullRecord(final Connection connection, final TaxonRow row) throws SQLException{
+	FullRecord rec = new FullRecord();
+
+	String tsn = row.tsn;
+	rec.tsn = tsn;
+
+	rec.kingdom.kingdomId = row.kingdomId;
+	rec.kingdom.kingdomName = getKingdom(connection, rec.kingdom.kingdomId);
+	Usage usage = new Usage();
+	usage.taxonUsageRating = row.nameUsage;
+	rec.usage = usage;
+
+	UnacceptReason unacceptReason = new UnacceptReason();
+	unacceptReason.unacceptReason = row.unacceptReason;
+	rec.unacceptReason = unacceptReason;
+
+	CurrencyRating currencyRating = new CurrencyRating();
+	currencyRating.taxonCurrency = row.currencyRating;
+	currencyRating.rankId = row.rankId;
+	rec.currencyRating = currencyRating;
+	rec.completenessRating.completeness = row.completenessRating;
+	rec.completenessRating.rankId = currencyRating.rankId;
+
+	CredibilityRating credibilityRating = new CredibilityRating();
+	credibilityRating.credRating = row.credibilityRating;
+	rec.credibilityRating = credibilityRating;
 			
-			//////////////
-			rec.commentList = makeComments(connection, tsn);;
-			//////////////
+	rec.taxRank.kingdomId = rec.kingdom.kingdomId;
+	rec.taxRank.kingdomName = rec.kingdom.kingdomName;
+	rec.taxRank.rankId = row.rankId;
+	rec.taxRank.rankName = makeRankName(connection, rec.taxRank.rankId);
 
-			rec.geographicDivisionList = makeGeographicDivisions(connection, tsn);
+	rec.parentTsn.parentTsn = row.parentTsn;
 
-			//////////////
-			rec.commonNameList = makeCommonNames(connection, tsn);
+	ScientificName sn = new ScientificName();
+	rec.scientificName = sn;
+	sn.combinedName = row.completeName;
+	sn.unitInd1 = row.unitInd1;
+	sn.unitInd2 = row.unitInd2;
+	sn.unitInd3 = row.unitInd3;
+	sn.unitInd4 = row.unitInd4;
+	sn.unitName1 = row.unitName1;
+	sn.unitName2 = row.unitName2;
+	sn.unitName3 = row.unitName3;
+	sn.unitName4 = row.unitName4;
 
-			//////////////
-			rec.synonymList = makeSynonyms(connection, tsn);
+	sn.author = makeScientificNameAuthor(connection, tsn);
 
+	rec.jurisdictionalOriginList = makeJurisdictionalOrigins(connection, tsn);;
 
-			//////////////
-			rec.acceptedNamesList = makeAcceptedNames(connection, tsn);
+	//////////////
+	rec.commentList = makeComments(connection, tsn);;
+	//////////////
 
-			//////////////
+	rec.geographicDivisionList = makeGeographicDivisions(connection, tsn);
 
-			makeRefs(rec, connection, tsn);
+	//////////////
+	rec.commonNameList = makeCommonNames(connection, tsn);
 
-			//////////////
+	//////////////
+	rec.synonymList = makeSynonyms(connection, tsn);
 
-			rec.taxonAuthor = makeTaxonAuthor(connection, taxonAuthorId);
 
-			/*
-			System.out.println("---------------------------------------------------------------");
-			System.out.println("QQQ : " + rec);
-			System.out.println("_________________________________________________________________________");
-			*/
-	
-			try{
-			    ItisRecord ir = pi.populateFullItisRecord(rec, aboveRanks, belowRanks);
-			    //printIR(ir);
-			    pi.add(ir);
-			}catch(Exception e){
-			    e.printStackTrace();
-			}
-		    }
-		//if(connection2 != null){
-		//connection2.close();
-		//}
-		System.out.flush();
+	//////////////
+	rec.acceptedNamesList = makeAcceptedNames(connection, tsn);
+
+	//////////////
+
+	makeRefs(rec, connection, tsn);
+
+	//////////////
 
+	rec.taxonAuthor = makeTaxonAuthor(connection, row.taxonAuthorId);
+
+	/*
+	  System.out.println("---------------------------------------------------------------");
+	  System.out.println("QQQ : " + rec);
+	  System.out.println("_________________________________________________________________________");
+	*/
+	return rec;
+    }
+
+    static final void addRecord(final CachingProxyImpl pi, final FullRecord rec, final List<TaxRank> aboveRanks, final List<TaxRank> belowRanks){
+	String tsn = rec.tsn;
+	try{
+	    LoaderEvents.Populate populateEvent = LoaderEvents.begin(new LoaderEvents.Populate());
+	    ItisRecord ir = null;
+	    try{
+		ir = pi.populateFullItisRecord(rec, aboveRanks, belowRanks);
+	    }finally{
+		populateEvent.tsn = tsn;
+		LoaderEvents.end(populateEvent);
+		populateEvent.commit();
 	    }
-	catch(SQLException e)
-	    {
-		// if the error message is "out of memory", 
-		// it probably means no database file is found
-		System.err.println(e.getMessage());
+	    //printIR(ir);
+
+	    LoaderEvents.CacheAdd addEvent = LoaderEvents.begin(new LoaderEvents.CacheAdd());
+	    try{
+		int t = ExistenceIndex.parseTsn(tsn);
+		if(hashStore != null && t < 0){
+		    System.err.println("addRecord: not a valid tsn, always written and not hashed: " + tsn);
+		    pi.add(ir);
+		    ++numWritten;
+		}else if(hashStore != null){
+		    long hash = RecordHash.hash(ir);
+		    if(hash != RecordHash.NO_HASH && hash == hashStore.previous(t)){
+			++numSkipped;
+			addEvent.skipped = true;
+		    }else{
+			pi.add(ir);
+			++numWritten;
+		    }
+		    hashStore.put(t, hash);
+		}else{
+		    pi.add(ir);
+		    ++numWritten;
+		}
+	    }finally{
+		LoaderEvents.end(addEvent);
+	    }
+	    if(addEvent.shouldCommit()){
+		addEvent.tsn = tsn;
+		addEvent.serializedSize = RecordHash.serializedSize(ir);
+		addEvent.commit();
+	    }
+	    if(existenceIndex != null){
+		existenceIndex.add(tsn, rec.usage.taxonUsageRating);
+	    }
+	}catch(Exception e){
+	    ++numFailed;
+	    System.err.println("addRecord: failed to add tsn " + tsn);
+	    e.printStackTrace();
+	    return;
+	}
+
+	// Only records that are in the cache go into the snapshot
+	if(snapshotWriter != null){
+	    try{
+		snapshotWriter.add(rec);
+	    }catch(IOException e){
 		e.printStackTrace();
 	    }
-	return numActualRecords;
+	}
     }
 
     static final void printIR(ItisRecord ir){
@@ -577,6 +1241,7 @@ public class ItisLoader
 	Statement statement = null;
 	ResultSet rs = null;
 	String author = null;
+	LoaderEvents.Sql event = LoaderEvents.beginSql("makeScientificNameAuthor", "strippedauthor");
 	try{
 	    statement = connection.createStatement();
 	    String sql = "select strippedauthor.shortauthor from strippedauthor, taxonomic_units where "
@@ -599,6 +1264,7 @@ public class ItisLoader
 	}
 	finally{
 	    closeAll(statement, rs);
+	    LoaderEvents.endSql(event, author == null? 0: 1);
 	}
 	return author;
     }
@@ -623,7 +1289,8 @@ public class ItisLoader
     }
 
     static final TaxonAuthor makeTaxonAuthor(final Connection conn, final String taxonAuthorId) throws SQLException{
-	Statement statement = connection.createStatement();
+	LoaderEvents.Sql event = LoaderEvents.beginSql("makeTaxonAuthor", "taxon_authors_lkp");
+	Statement statement = conn.createStatement();
 	TaxonAuthor ta = new TaxonAuthor();
 	String sql = "select * from taxon_authors_lkp where taxon_author_id=" + taxonAuthorId;
 	ResultSet rs = statement.executeQuery(sql);
@@ -633,123 +1300,213 @@ public class ItisLoader
 		ta.authorship = rs.getString("taxon_author");
 	    }
 	closeAll(statement, rs);
+	LoaderEvents.endSql(event, ta.authorship == null? 0: 1);
 
 	return ta;
     }
 
+    // Publications, experts and other sources are shared by many taxa, so the most recently
+    // used ones are kept rather than re-queried for every reference link (resized from the memory budget in run())
+    static final int DOCUMENT_CACHE_SIZE = 20000;
+    static Map<String, List<Publication>> publicationCache = lruCache(DOCUMENT_CACHE_SIZE);
+    static Map<String, List<Expert>> expertCache = lruCache(DOCUMENT_CACHE_SIZE);
+    static Map<String, List<OtherSource>> otherSourceCache = lruCache(DOCUMENT_CACHE_SIZE);
+
+    // Synchronized, as an access ordered map is modified by get() and the verifier assembles records on many threads
+    static final <K, V> Map<K, V> lruCache(final int maxSize){
+	return Collections.synchronizedMap(new LinkedHashMap<K, V>(1024, 0.75f, true){
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<K, V> eldest){
+		    return size() > maxSize;
+		}
+	    });
+    }
+
+    // Accumulates every referenced document of the tsn: a tsn can have many PUB, SRC and EXP links
     static final void makeRefs(final FullRecord rec, final Connection conn, final String tsn) throws SQLException{
-	Statement statement = connection.createStatement();
-	ResultSet rs = statement.executeQuery("select * from reference_links where tsn=" + tsn);
-	while(rs.next())
-	    {
-		String prefix = rs.getString("doc_id_prefix");
-		//System.out.println("\t\t----- " + prefix);
-		String docId = rs.getString("documentation_id");
-		//System.out.println("\tdocumentation_id = " + docId);
-		
-		if(prefix.equals(DOC_TYPE_PUB)){
-		    //System.out.println("\tvernacular_name = " + rs.getString("vernacular_name"));
-		    rec.publicationList = makePublications(connection, docId);
-		}else 
-		    if(prefix.equals(DOC_TYPE_SRC)){
-			rec.otherSourceList = makeOtherSources(connection, docId);
-		    }else
-			if(prefix.equals(DOC_TYPE_EXP)){
-			    rec.expertList = makeExperts(connection, docId);
+	LoaderEvents.Sql event = LoaderEvents.beginSql("makeRefs", "reference_links");
+	int rows = 0;
+	Statement statement = conn.createStatement();
+	ResultSet rs = statement.executeQuery("select doc_id_prefix, documentation_id from reference_links where tsn=" + tsn);
+	PublicationList publicationList = null;
+	OtherSourceList otherSourceList = null;
+	ExpertList expertList = null;
+	Set<String> seen = new HashSet<String>();
+	try{
+	    while(rs.next())
+		{
+		    ++rows;
+		    String prefix = rs.getString("doc_id_prefix");
+		    String docId = rs.getString("documentation_id");
+		    if(prefix == null || docId == null || !seen.add(prefix + docId)){
+			continue;
+		    }
+
+		    if(prefix.equals(DOC_TYPE_PUB)){
+			if(publicationList == null){
+			    publicationList = new PublicationList();
+			    publicationList.publications = new ArrayList<Publication>();
 			}
-	    }
-	closeAll(statement, rs);
+			publicationList.publications.addAll(getPublications(conn, docId));
+		    }else 
+			if(prefix.equals(DOC_TYPE_SRC)){
+			    if(otherSourceList == null){
+				otherSourceList = new OtherSourceList();
+				otherSourceList.otherSources = new ArrayList<OtherSource>();
+			    }
+			    otherSourceList.otherSources.addAll(getOtherSources(conn, docId));
+			}else
+			    if(prefix.equals(DOC_TYPE_EXP)){
+				if(expertList == null){
+				    expertList = new ExpertList();
+				    expertList.experts = new ArrayList<Expert>();
+				}
+				expertList.experts.addAll(getExperts(conn, docId));
+			    }
+		}
+	}finally{
+	    closeAll(statement, rs);
+	    LoaderEvents.endSql(event, rows);
+	}
+	if(publicationList != null){
+	    rec.publicationList = publicationList;
+	}
+	if(otherSourceList != null){
+	    rec.otherSourceList = otherSourceList;
+	}
+	if(expertList != null){
+	    rec.expertList = expertList;
+	}
     }
 
-    static final PublicationList makePublications(final Connection conn, final String docId) throws SQLException{
-	PublicationList publicationList = new PublicationList();
+    static final List<Publication> getPublications(final Connection conn, final String docId) throws SQLException{
+	List<Publication> publications = cacheLookup(publicationCache, docId);
+	if(publications != null){
+	    return publications;
+	}
+	publications = new ArrayList<Publication>(1);
 
-	Statement statement = connection.createStatement();
+	LoaderEvents.Sql event = LoaderEvents.beginSql("getPublications", "publications");
+	Statement statement = conn.createStatement();
 	String sql = "select * from publications where publication_id=" + docId;
 	ResultSet rs = statement.executeQuery(sql);
-
-	while(rs.next())
-	    {
-		Publication pub = new Publication();
-		pub.actualPubDate = rs.getString("actual_pub_date");
-		pub.isbn = rs.getString("isbn");
-		pub.issn = rs.getString("issn");
-		pub.listedPubDate = rs.getString("listed_pub_date");
-		pub.pages = rs.getString("pages");
-		pub.pubComment = rs.getString("pub_comment");
-		pub.pubName = rs.getString("publication_name");
-		pub.pubPlace = rs.getString("pub_place");
-		pub.publisher = rs.getString("publisher");
-		pub.referenceAuthor = rs.getString("reference_author");
-		pub.title = rs.getString("title");
-		
-		if(publicationList.publications == null){
-		    publicationList.publications = new ArrayList<Publication>();
+	try{
+	    while(rs.next())
+		{
+		    Publication pub = new Publication();
+		    pub.actualPubDate = rs.getString("actual_pub_date");
+		    pub.isbn = rs.getString("isbn");
+		    pub.issn = rs.getString("issn");
+		    pub.listedPubDate = rs.getString("listed_pub_date");
+		    pub.pages = rs.getString("pages");
+		    pub.pubComment = rs.getString("pub_comment");
+		    pub.pubName = rs.getString("publication_name");
+		    pub.pubPlace = rs.getString("pub_place");
+		    pub.publisher = rs.getString("publisher");
+		    pub.referenceAuthor = rs.getString("reference_author");
+		    pub.title = rs.getString("title");
+		    publications.add(pub);
 		}
-		publicationList.publications.add(pub);
-		
-		//System.out.println("\t\ttitle = " + rs.getString("title"));
-		//System.out.println("\t\tpublication_name = " + rs.getString("publication_name"));
-	    }
-	return publicationList;
+	}finally{
+	    closeAll(statement, rs);
+	    LoaderEvents.endSql(event, publications.size());
+	}
+	publicationCache.put(docId, publications);
+	return publications;
     }
 
-    static final ExpertList makeExperts(final Connection conn, final String docId) throws SQLException{
-	Statement statement = connection.createStatement();
+    static final List<Expert> getExperts(final Connection conn, final String docId) throws SQLException{
+	List<Expert> experts = cacheLookup(expertCache, docId);
+	if(experts != null){
+	    return experts;
+	}
+	experts = new ArrayList<Expert>(1);
+
+	LoaderEvents.Sql event = LoaderEvents.beginSql("getExperts", "experts");
+	Statement statement = conn.createStatement();
 	String sql = "select * from experts where expert_id=" + docId;
 	ResultSet rs = statement.executeQuery(sql);
-	ExpertList expertList = new ExpertList();
-	while(rs.next())
-	    {
-		//System.out.println("\t\texpert = " + rs.getString("expert"));
-		//System.out.println("\t\texpert_id_prefix = " + rs.getString("expert_id_prefix"));
-		Expert exp = new Expert();
-		exp.expert = rs.getString("expert");
-		exp.comment = rs.getString("exp_comment");
-		exp.updateDate = rs.getString("update_date");
-		if(expertList.experts == null){
-		    expertList.experts = new ArrayList<Expert>();
+	try{
+	    while(rs.next())
+		{
+		    Expert exp = new Expert();
+		    exp.expert = rs.getString("expert");
+		    exp.comment = rs.getString("exp_comment");
+		    exp.updateDate = rs.getString("update_date");
+		    experts.add(exp);
 		}
-		expertList.experts.add(exp);
-	    }
-	return expertList;
+	}finally{
+	    closeAll(statement, rs);
+	    LoaderEvents.endSql(event, experts.size());
+	}
+	expertCache.put(docId, experts);
+	return experts;
     }
 
-    static final OtherSourceList makeOtherSources(final Connection conn, final String docId) throws SQLException{
-	OtherSourceList otherSourceList = new OtherSourceList();
-	otherSourceList.otherSources = new ArrayList<OtherSource>();
+    static final List<OtherSource> getOtherSources(final Connection conn, final String docId) throws SQLException{
+	List<OtherSource> otherSources = cacheLookup(otherSourceCache, docId);
+	if(otherSources != null){
+	    return otherSources;
+	}
+	otherSources = new ArrayList<OtherSource>(1);
 
-	Statement statement = connection.createStatement();
+	LoaderEvents.Sql event = LoaderEvents.beginSql("getOtherSources", "other_sources");
+	Statement statement = conn.createStatement();
 	String sql = "select * from other_sources where source_id=" + docId;
-
 	ResultSet rs = statement.executeQuery(sql);
-
-	while(rs.next())
-	    {
-		OtherSource oso = new OtherSource();
-		oso.source = rs.getString("source");
-		oso.sourceComment = rs.getString("source_comment");
-		oso.sourceType = rs.getString("source_type");
-		oso.version = rs.getString("version");
-		otherSourceList.otherSources.add(oso);
-	    }
-	
-	closeAll(statement, rs);
-	return otherSourceList;
-	
+	try{
+	    while(rs.next())
+		{
+		    OtherSource oso = new OtherSource();
+		    oso.source = rs.getString("source");
+		    oso.sourceComment = rs.getString("source_comment");
+		    oso.sourceType = rs.getString("source_type");
+		    oso.version = rs.getString("version");
+		    otherSources.add(oso);
+		}
+	}finally{
+	    closeAll(statement, rs);
+	    LoaderEvents.endSql(event, otherSources.size());
+	}
+	otherSourceCache.put(docId, otherSources);
+	return otherSources;
     }
 
+    // Resolved from synonym_links in one pass (see SynonymIndex), with the names of the linked tsns read
+    // in another (SynonymNames): the lists are built in memory, once per link and in link order, as the
+    // joins below (and the count(*) joins of CacheVerifier) return them. Without the names (a verifier
+    // reading the index of a cache) the index only spares the join for tsns with no links
+    static SynonymIndex synonymIndex = null;
+    static SynonymNames synonymNames = null;
+
     static final AcceptedNamesList makeAcceptedNames(final Connection conn, final String tsn) throws SQLException{
 	AcceptedNamesList anl = new AcceptedNamesList();
 	anl.acceptedNames = new ArrayList<AcceptedName>();
 	
-	Statement statement = connection.createStatement();
+	if(synonymIndex != null && synonymNames != null){
+	    for(int accepted: synonymIndex.acceptedOf(ExistenceIndex.parseTsn(tsn))){
+		int i = synonymNames.indexOf(accepted);
+		if(i >= 0){
+		    AcceptedName an = new AcceptedName();
+		    an.acceptedName = synonymNames.name(i);
+		    an.acceptedTsn = Integer.toString(accepted);
+		    an.author = synonymNames.author(i);
+		    anl.acceptedNames.add(an);
+		}
+	    }
+	    return anl;
+	}
+	if(synonymIndex != null && synonymIndex.acceptedOf(ExistenceIndex.parseTsn(tsn)).length == 0){
+	    return anl;
+	}
 	String sql = "select taxonomic_units.tsn, taxonomic_units.complete_name, strippedauthor.shortauthor from strippedauthor, synonym_links, taxonomic_units where synonym_links.tsn="
 	    + tsn
-	    + " and taxonomic_units.tsn=synonym_links.tsn_accepted" 
+	    + " and taxonomic_units.tsn=synonym_links.tsn_accepted"
 	    + " and taxonomic_units.taxon_author_id = strippedauthor.taxon_author_id"
-	    + ";";
-	
+	    + " order by synonym_links.rowid;";
+
+	LoaderEvents.Sql event = LoaderEvents.beginSql("makeAcceptedNames", "synonym_links");
+	Statement statement = conn.createStatement();
 	ResultSet rs = statement.executeQuery(sql);
 	while(rs.next())
 	    {
@@ -760,6 +1517,7 @@ public class ItisLoader
 		anl.acceptedNames.add(an);
 	    }
 	closeAll(statement, rs);
+	LoaderEvents.endSql(event, anl.acceptedNames.size());
 
 	return anl;
     }
@@ -768,7 +1526,18 @@ public class ItisLoader
 	CommonNamesList cnl = new CommonNamesList();
 	cnl.commonNames = new ArrayList<CommonName>();
 
-	Statement statement = connection.createStatement();
+	if(vernacularStore != null){
+	    for(String[] vernacular: vernacularStore.vernaculars(ExistenceIndex.parseTsn(tsn))){
+		CommonName cn = new CommonName();
+		cn.language = vernacular[0];
+		cn.commonName = vernacular[1];
+		cnl.commonNames.add(cn);
+	    }
+	    return cnl;
+	}
+
+	LoaderEvents.Sql event = LoaderEvents.beginSql("makeCommonNames", "vernaculars");
+	Statement statement = conn.createStatement();
 	String sql = "select * from vernaculars where tsn=" + tsn;
 	System.out.println(sql);
 	ResultSet rs = statement.executeQuery(sql);
@@ -781,6 +1550,7 @@ public class ItisLoader
 		cnl.commonNames.add(cn);
 	    }
 	closeAll(statement, rs);
+	LoaderEvents.endSql(event, cnl.commonNames.size());
 	return cnl;
     }
 
@@ -788,7 +1558,8 @@ public class ItisLoader
 	GeographicDivisionsList gdl = new GeographicDivisionsList();
 	gdl.geoDivisions = new ArrayList<GeoDivision>();
 	
-	Statement statement = connection.createStatement();
+	LoaderEvents.Sql event = LoaderEvents.beginSql("makeGeographicDivisions", "geographic_div");
+	Statement statement = conn.createStatement();
 	ResultSet rs = statement.executeQuery("select * from geographic_div where tsn=" + tsn);
 	while(rs.next())
 	    {
@@ -797,6 +1568,7 @@ public class ItisLoader
 		gdl.geoDivisions.add(gd);
 	    }
 	closeAll(statement, rs);
+	LoaderEvents.endSql(event, gdl.geoDivisions.size());
 	return gdl;
     }
 
@@ -804,11 +1576,29 @@ public class ItisLoader
 	SynonymList snl = new SynonymList();
 	snl.synonyms = new ArrayList<Synonym>();
 	
-	Statement statement = connection.createStatement();
-	String sql = "select taxonomic_units.tsn, complete_name, strippedauthor.shortauthor from strippedauthor, synonym_links, taxonomic_units where synonym_links.tsn_accepted=" 
-	    + tsn 
-	    + " and taxonomic_units.tsn=synonym_links.tsn and taxonomic_units.taxon_author_id = strippedauthor.taxon_author_id;";
-	
+	if(synonymIndex != null && synonymNames != null){
+	    for(int synonym: synonymIndex.synonymsOf(ExistenceIndex.parseTsn(tsn))){
+		int i = synonymNames.indexOf(synonym);
+		if(i >= 0){
+		    Synonym syn = new Synonym();
+		    syn.sciName = synonymNames.name(i);
+		    syn.tsn = Integer.toString(synonym);
+		    syn.author = synonymNames.author(i);
+		    snl.synonyms.add(syn);
+		}
+	    }
+	    return snl;
+	}
+	if(synonymIndex != null && synonymIndex.synonymsOf(ExistenceIndex.parseTsn(tsn)).length == 0){
+	    return snl;
+	}
+	String sql = "select taxonomic_units.tsn, complete_name, strippedauthor.shortauthor from strippedauthor, synonym_links, taxonomic_units where synonym_links.tsn_accepted="
+	    + tsn
+	    + " and taxonomic_units.tsn=synonym_links.tsn and taxonomic_units.taxon_author_id = strippedauthor.taxon_author_id"
+	    + " order by synonym_links.rowid;";
+
+	LoaderEvents.Sql event = LoaderEvents.beginSql("makeSynonyms", "synonym_links");
+	Statement statement = conn.createStatement();
 	ResultSet rs = statement.executeQuery(sql);
 	while(rs.next())
 	    {
@@ -819,12 +1609,14 @@ public class ItisLoader
 		snl.synonyms.add(syn);
 	    }
 	closeAll(statement, rs);
+	LoaderEvents.endSql(event, snl.synonyms.size());
 
 	return snl;
     }
 
     static final CommentList makeComments(final Connection conn, final String tsn) throws SQLException{
-	Statement statement = connection.createStatement();
+	LoaderEvents.Sql event = LoaderEvents.beginSql("makeComments", "comments");
+	Statement statement = conn.createStatement();
 	String sql = "select comments.comment_id, comments.commentator, comments.comment_detail  "
 	    + " from tu_comments_links, comments where tsn=" + tsn 
 	    + " and tu_comments_links.comment_id = comments.comment_id";
@@ -842,6 +1634,7 @@ public class ItisLoader
 		comment.commentator = rs.getString("commentator");
 	    }
 	closeAll(statement, rs);
+	LoaderEvents.endSql(event, commentList.comments.size());
 	return commentList;
     }
 
@@ -851,8 +1644,9 @@ public class ItisLoader
 	
 	Statement statement = null;
 	ResultSet rs = null;
+	LoaderEvents.Sql event = LoaderEvents.beginSql("makeJurisdictionalOrigins", "jurisdiction");
 	try{
-	    statement = connection.createStatement();
+	    statement = conn.createStatement();
 	    rs = statement.executeQuery("select * from jurisdiction where tsn=" + tsn);
 	    while(rs.next())
 		{
@@ -868,6 +1662,7 @@ public class ItisLoader
 	    e.printStackTrace();
 	}finally{
 	    closeAll(statement, rs);
+	    LoaderEvents.endSql(event, jurisdictionalOriginsList.jurisdictionalOrigins.size());
 	}
 	
 	return jurisdictionalOriginsList;
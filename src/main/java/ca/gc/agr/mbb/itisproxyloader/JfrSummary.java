@@ -0,0 +1,130 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* JfrSummary: prints the top loader stages of a JFR recording (ItisLoader --jfr=file)
+   by exclusive time, with their count, total time, mean and p99 times.
+   A stage's exclusive (self) time leaves out the loader events nested in it, e.g. the SQL
+   helpers run by a hierarchy build: the self times add up to the time of the load, the
+   total times do not. p99 is the upper bound of its power of two bucket (LatencyHistogram),
+   so the summary keeps a fixed amount of memory per stage however long the recording.
+   SQL helper events are broken down by helper and table.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+
+public class JfrSummary
+{
+    public static final int DEFAULT_TOP = 20;
+
+    // Histogram of the durations and totals of one stage
+    static final class Stage{
+	final String name;
+	final LatencyHistogram histogram = new LatencyHistogram();
+	long totalNanos = 0l;
+	long exclusiveNanos = 0l;
+	long totalRows = 0l;
+	long totalBytes = 0l;
+
+	Stage(final String name){
+	    this.name = name;
+	}
+
+	void add(final long d, final long exclusive){
+	    histogram.record(d);
+	    totalNanos += d;
+	    exclusiveNanos += exclusive;
+	}
+    }
+
+    public static final void usage(){
+	System.err.println("\n\tUsage: java ca.gc.agr.mbb.itisproxyloader.JfrSummary recording.jfr [top_n]\n");
+	System.exit(42);
+    }
+
+    public static final void main(final String[] args){
+	if(args.length < 1 || args.length > 2){
+	    usage();
+	}
+	int top = DEFAULT_TOP;
+	if(args.length == 2){
+	    try{
+		top = Integer.parseInt(args[1]);
+	    }catch(NumberFormatException e){
+		usage();
+	    }
+	}
+	try{
+	    print(summarize(new File(args[0])), top);
+	}catch(IOException e){
+	    e.printStackTrace();
+	    System.exit(1);
+	}
+    }
+
+    static final List<Stage> summarize(final File file) throws IOException{
+	Map<String, Stage> stages = new HashMap<String, Stage>();
+	RecordingFile recording = new RecordingFile(file.toPath());
+	try{
+	    while(recording.hasMoreEvents()){
+		RecordedEvent event = recording.readEvent();
+		String type = event.getEventType().getName();
+		if(!type.startsWith(LoaderEvents.PREFIX)){
+		    continue;
+		}
+		String name = event.getEventType().getLabel();
+		if(event.hasField("helper")){
+		    name += " " + event.getString("helper") + "(" + event.getString("table") + ")";
+		}else if(event.hasField("how")){
+		    name += " " + event.getString("how");
+		}
+		Stage stage = stages.get(name);
+		if(stage == null){
+		    stage = new Stage(name);
+		    stages.put(name, stage);
+		}
+		long d = event.getDuration().toNanos();
+		// Recordings from before exclusive times were recorded: the whole duration. The exclusive
+		// time is measured with System.nanoTime, not the JFR clock: capped at the duration
+		stage.add(d, event.hasField(LoaderEvents.EXCLUSIVE_FIELD)? Math.min(d, event.getDuration(LoaderEvents.EXCLUSIVE_FIELD).toNanos()): d);
+		if(event.hasField("rows")){
+		    stage.totalRows += event.getInt("rows");
+		}
+		if(event.hasField("serializedSize")){
+		    stage.totalBytes += event.getLong("serializedSize");
+		}
+	    }
+	}finally{
+	    recording.close();
+	}
+	List<Stage> sorted = new ArrayList<Stage>(stages.values());
+	Collections.sort(sorted, new Comparator<Stage>(){
+		public int compare(final Stage a, final Stage b){
+		    return Long.compare(b.exclusiveNanos, a.exclusiveNanos);
+		}
+	    });
+	return sorted;
+    }
+
+    static final void print(final List<Stage> stages, final int top){
+	System.out.println(String.format(Locale.ROOT, "%-60s %10s %12s %12s %10s %10s %12s %14s",
+					 "stage", "count", "self_ms", "total_ms", "mean_us", "p99_us", "rows", "bytes"));
+	for(int i=0; i<stages.size() && i<top; i++){
+	    Stage s = stages.get(i);
+	    System.out.println(String.format(Locale.ROOT, "%-60s %10d %12.1f %12.1f %10.1f %10d %12d %14d",
+					     s.name, s.histogram.getCount(), s.exclusiveNanos / 1e6, s.totalNanos / 1e6,
+					     s.histogram.getMeanMicros(), s.histogram.getPercentileMicros(99), s.totalRows, s.totalBytes));
+	}
+    }
+
+}//
@@ -0,0 +1,73 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* LatencyHistogram: lock free histogram of latencies, in power of two microsecond buckets.
+   Percentiles are reported as the upper bound of the bucket they fall into.
+ */
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+public class LatencyHistogram
+{
+    static final int NUM_BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public final void record(final long nanos){
+	long micros = Math.max(0l, nanos / 1000l);
+	int bucket = Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	buckets.incrementAndGet(bucket);
+	count.incrementAndGet();
+	totalNanos.addAndGet(nanos);
+	long max = maxNanos.get();
+	while(nanos > max && !maxNanos.compareAndSet(max, nanos)){
+	    max = maxNanos.get();
+	}
+    }
+
+    public final long getCount(){
+	return count.get();
+    }
+
+    public final double getMeanMicros(){
+	long n = count.get();
+	return n == 0? 0.0: totalNanos.get() / 1000.0 / n;
+    }
+
+    public final long getMaxMicros(){
+	return maxNanos.get() / 1000l;
+    }
+
+    // Upper bound, in microseconds, of the bucket holding the given percentile (0-100)
+    public final long getPercentileMicros(final double percentile){
+	long n = count.get();
+	if(n == 0){
+	    return 0l;
+	}
+	long rank = (long)Math.ceil(n * percentile / 100.0);
+	long seen = 0l;
+	for(int i=0; i<NUM_BUCKETS; i++){
+	    seen += buckets.get(i);
+	    if(seen >= rank){
+		return i == 0? 0l: 1l << i;
+	    }
+	}
+	return getMaxMicros();
+    }
+
+    public final String toJson(){
+	return "{\"count\":" + getCount()
+	    + ",\"meanMicros\":" + String.format(Locale.ROOT, "%.1f", getMeanMicros())
+	    + ",\"p50Micros\":" + getPercentileMicros(50)
+	    + ",\"p90Micros\":" + getPercentileMicros(90)
+	    + ",\"p99Micros\":" + getPercentileMicros(99)
+	    + ",\"maxMicros\":" + getMaxMicros()
+	    + "}";
+    }
+
+}//
@@ -0,0 +1,170 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* LoadFilter: restricts a load to some kingdoms, a rank_id range, the subtrees of some
+   root tsns and/or accepted names only.
+   In table order the conditions are pushed into the taxonomic_units scan; in tree order
+   excluded subtrees are not walked and excluded rows are not assembled.
+   The hierarchies of the records that are loaded stay complete.
+ */
+
+import java.util.Arrays;
+
+
+public class LoadFilter
+{
+    static final String ACCEPTED_USAGES = "('accepted','valid')";
+    static final int MAX_NESTING_REPORTS = 20;
+
+    int[] kingdomIds = null;
+    int minRankId = -1;
+    int maxRankId = -1;
+    int[] rootTsns = null;
+    boolean acceptedOnly = false;
+    // Parent/child pairs seen by the tree walk that break the assumption of prunes()
+    long numNestingViolations = 0l;
+
+    public final boolean isEmpty(){
+	return kingdomIds == null && minRankId < 0 && maxRankId < 0 && rootTsns == null && !acceptedOnly;
+    }
+
+    public final boolean hasRoots(){
+	return rootTsns != null;
+    }
+
+    // The conditions on taxonomic_units columns, as a where clause ("" if none); root subtrees are not included
+    public final String sqlWhere(){
+	StringBuilder sb = new StringBuilder();
+	if(kingdomIds != null){
+	    and(sb).append("kingdom_id in (").append(join(kingdomIds)).append(")");
+	}
+	if(minRankId >= 0){
+	    and(sb).append("rank_id >= ").append(minRankId);
+	}
+	if(maxRankId >= 0){
+	    and(sb).append("rank_id <= ").append(maxRankId);
+	}
+	if(acceptedOnly){
+	    and(sb).append("name_usage in ").append(ACCEPTED_USAGES);
+	}
+	return sb.length() == 0? "": " where " + sb;
+    }
+
+    // Whether the row itself is to be loaded (not counting root subtrees)
+    public final boolean accepts(final TaxonRow row){
+	return accepts(parseId(row.kingdomId), parseId(row.rankId), row.nameUsage);
+    }
+
+    public final boolean accepts(final int kingdomId, final int rankId, final String nameUsage){
+	if(kingdomIds != null && !contains(kingdomIds, kingdomId)){
+	    return false;
+	}
+	if(minRankId >= 0 && rankId < minRankId){
+	    return false;
+	}
+	if(maxRankId >= 0 && rankId > maxRankId){
+	    return false;
+	}
+	if(acceptedOnly && !(ExistenceIndex.USAGE_ACCEPTED.equalsIgnoreCase(nameUsage) || ExistenceIndex.USAGE_VALID.equalsIgnoreCase(nameUsage))){
+	    return false;
+	}
+	return true;
+    }
+
+    // Whether nothing at or below the row can be loaded. This assumes that a child has the kingdom_id of
+    // its parent and a higher rank_id, which ITIS keeps but does not enforce: the tree walk checks the
+    // pairs it sees (checkNesting). Rows of a subtree pruned wrongly are still loaded after the walk, in
+    // table order (ItisLoader.loadUnreached), except in a --roots load
+    public final boolean prunes(final TaxonRow row){
+	if(kingdomIds != null && !contains(kingdomIds, parseId(row.kingdomId))){
+	    return true;
+	}
+	return maxRankId >= 0 && parseId(row.rankId) > maxRankId;
+    }
+
+    // Counts and reports a child that breaks the assumption of prunes(); only when something can be pruned
+    public final void checkNesting(final TaxonRow parent, final TaxonRow child){
+	if(kingdomIds == null && maxRankId < 0){
+	    return;
+	}
+	if(parseId(child.kingdomId) == parseId(parent.kingdomId) && parseId(child.rankId) > parseId(parent.rankId)){
+	    return;
+	}
+	if(numNestingViolations++ < MAX_NESTING_REPORTS){
+	    System.err.println("LoadFilter: tsn " + child.tsn + " (kingdom_id " + child.kingdomId + ", rank_id " + child.rankId
+			       + ") is not nested in its parent " + parent.tsn + " (kingdom_id " + parent.kingdomId + ", rank_id " + parent.rankId
+			       + "): pruning may miss rows below it");
+	}
+    }
+
+    public final boolean isRoot(final int tsn){
+	return rootTsns != null && contains(rootTsns, tsn);
+    }
+
+    public final String toString(){
+	if(isEmpty()){
+	    return "none";
+	}
+	return (kingdomIds == null? "": "kingdoms=" + Arrays.toString(kingdomIds) + " ")
+	    + (minRankId < 0? "": "minRankId=" + minRankId + " ")
+	    + (maxRankId < 0? "": "maxRankId=" + maxRankId + " ")
+	    + (rootTsns == null? "": "roots=" + Arrays.toString(rootTsns) + " ")
+	    + (acceptedOnly? "acceptedOnly": "");
+    }
+
+    // A kingdom_id or rank_id column value; -1 if null or malformed
+    static final int parseId(final String id){
+	if(id == null){
+	    return -1;
+	}
+	try{
+	    return Integer.parseInt(id.trim());
+	}catch(NumberFormatException e){
+	    return -1;
+	}
+    }
+
+    // Parses a comma separated list of ints; null if malformed
+    static final int[] parseInts(final String s){
+	if(s == null || s.length() == 0){
+	    return null;
+	}
+	String[] parts = s.split(",");
+	int[] values = new int[parts.length];
+	for(int i=0; i<parts.length; i++){
+	    try{
+		values[i] = Integer.parseInt(parts[i].trim());
+	    }catch(NumberFormatException e){
+		return null;
+	    }
+	}
+	return values;
+    }
+
+    static final String join(final int[] values){
+	StringBuilder sb = new StringBuilder();
+	for(int i=0; i<values.length; i++){
+	    if(i > 0){
+		sb.append(',');
+	    }
+	    sb.append(values[i]);
+	}
+	return sb.toString();
+    }
+
+    static final StringBuilder and(final StringBuilder sb){
+	if(sb.length() > 0){
+	    sb.append(" and ");
+	}
+	return sb;
+    }
+
+    static final boolean contains(final int[] values, final int v){
+	for(int x: values){
+	    if(x == v){
+		return true;
+	    }
+	}
+	return false;
+    }
+
+}//
@@ -0,0 +1,171 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* LoaderEvents: JDK Flight Recorder events emitted by ItisLoader, one per stage:
+   SQL helper call, hierarchy build, populateFullItisRecord and cache add.
+   They cost next to nothing unless a recording is running (ItisLoader --jfr=file);
+   summarize a recording with JfrSummary.
+   Events nest (a hierarchy build runs SQL helpers, getHierarchyOneLevelDown looks up names):
+   each event also records its exclusive time, without the loader events nested in it, so
+   that the stages of a summary add up instead of counting nested time twice.
+ */
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+
+public class LoaderEvents
+{
+    static final String CATEGORY = "ITIS Loader";
+    static final String PREFIX = "ca.gc.agr.mbb.itisproxyloader.";
+    static final String EXCLUSIVE_FIELD = "exclusiveNanos";
+
+    // Started with begin(event) and ended with end(event), which fill in the exclusive time
+    abstract static class LoaderEvent extends Event{
+	@Label("Exclusive time")
+	@Timespan(Timespan.NANOSECONDS)
+	long exclusiveNanos;
+
+	// Nesting depth of the event in its thread; not recorded
+	transient int nestingDepth;
+    }
+
+    // The loader events open in a thread, innermost last: when each started, and the time
+    // spent in the events nested in it so far
+    static final class Nesting{
+	long[] starts = new long[16];
+	long[] nestedNanos = new long[16];
+	int depth = 0;
+    }
+
+    static final ThreadLocal<Nesting> NESTING = new ThreadLocal<Nesting>(){
+	    protected Nesting initialValue(){
+		return new Nesting();
+	    }
+	};
+
+    @Name(PREFIX + "Sql")
+    @Label("SQL helper")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class Sql extends LoaderEvent{
+	@Label("Helper")
+	String helper;
+
+	@Label("Table")
+	String table;
+
+	@Label("Rows")
+	int rows;
+    }
+
+    @Name(PREFIX + "Hierarchy")
+    @Label("Hierarchy build")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class Hierarchy extends LoaderEvent{
+	@Label("Tsn")
+	String tsn;
+
+	// "query": built with getHierarchyAbove, "stack": taken from the tree order ancestor stack
+	@Label("How")
+	String how;
+
+	@Label("Depth")
+	int depth;
+    }
+
+    @Name(PREFIX + "Populate")
+    @Label("Populate record")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class Populate extends LoaderEvent{
+	@Label("Tsn")
+	String tsn;
+    }
+
+    @Name(PREFIX + "CacheAdd")
+    @Label("Cache add")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    public static final class CacheAdd extends LoaderEvent{
+	@Label("Tsn")
+	String tsn;
+
+	@Label("Serialized size")
+	long serializedSize;
+
+	@Label("Skipped")
+	boolean skipped;
+    }
+
+    static final <E extends LoaderEvent> E begin(final E event){
+	event.begin();
+	if(event.isEnabled()){
+	    Nesting nesting = NESTING.get();
+	    int d = nesting.depth;
+	    if(d == nesting.starts.length){
+		nesting.starts = Arrays.copyOf(nesting.starts, d * 2);
+		nesting.nestedNanos = Arrays.copyOf(nesting.nestedNanos, d * 2);
+	    }
+	    nesting.starts[d] = System.nanoTime();
+	    nesting.nestedNanos[d] = 0l;
+	    event.nestingDepth = d;
+	    nesting.depth = d + 1;
+	}
+	return event;
+    }
+
+    // Ends the event, but does not commit it. Nested events that were never ended (an exception
+    // went past them) are dropped with it
+    static final void end(final LoaderEvent event){
+	event.end();
+	if(event.isEnabled()){
+	    Nesting nesting = NESTING.get();
+	    int d = event.nestingDepth;
+	    if(d < nesting.depth){
+		long nanos = System.nanoTime() - nesting.starts[d];
+		event.exclusiveNanos = nanos - nesting.nestedNanos[d];
+		if(d > 0){
+		    nesting.nestedNanos[d - 1] += nanos;
+		}
+		nesting.depth = d;
+	    }
+	}
+    }
+
+    static final Sql beginSql(final String helper, final String table){
+	Sql event = new Sql();
+	event.helper = helper;
+	event.table = table;
+	return begin(event);
+    }
+
+    static final void endSql(final Sql event, final int rows){
+	event.rows = rows;
+	end(event);
+	event.commit();
+    }
+
+    // Starts a recording of the loader's events, written to file when stopped
+    static final Recording startRecording(final String file) throws IOException{
+	Recording recording = new Recording();
+	recording.setName("ItisLoader");
+	recording.enable(Sql.class);
+	recording.enable(Hierarchy.class);
+	recording.enable(Populate.class);
+	recording.enable(CacheAdd.class);
+	recording.setDestination(Paths.get(file));
+	recording.start();
+	return recording;
+    }
+
+}//
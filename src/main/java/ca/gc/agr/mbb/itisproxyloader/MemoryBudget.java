@@ -0,0 +1,184 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* MemoryBudget: sizes the loader's fetch windows and caches from a heap budget,
+   and watches the heap left in use after collections (MemoryPoolMXBean collection usage)
+   between chunks: under pressure the chunk size is halved (and the tree walk drops its
+   document caches) before the JVM starts GC thrashing; with plenty of headroom the chunk
+   size grows again.
+   The loader never waits for the heap to come down: the collection usage only changes when
+   a collection runs, and the loader is the only thread that allocates. So a reading is acted
+   on once, and checked again after the next chunk, once a collection has run.
+ */
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class MemoryBudget
+{
+    // Default budget, as a fraction of the max heap, when none is given
+    static final double DEFAULT_HEAP_FRACTION = 0.75;
+
+    // Rough heap cost of one taxonomic_units row in a fetch window, including the
+    // driver's buffering and the record assembled from it. The default budget with -Xmx128M
+    // gives about the 4000 row chunks the loader used to have: 4096 when the JVM reports
+    // the whole 128MB as max heap, a little less when it leaves out a survivor space
+    static final long BYTES_PER_ROW = 24l * 1024l;
+    static final int MIN_CHUNK_SIZE = 250;
+    static final int MAX_CHUNK_SIZE = 50000;
+
+    // Rough heap cost of a cached publication/expert/other source, and the share of the budget for them
+    static final long BYTES_PER_DOCUMENT = 1024l;
+    static final double DOCUMENT_CACHE_FRACTION = 0.10;
+    static final int MIN_DOCUMENT_CACHE_SIZE = 1000;
+    static final int MAX_DOCUMENT_CACHE_SIZE = 500000;
+
+    // Snapshot row groups are buffered in memory until written
+    static final long BYTES_PER_SNAPSHOT_ROW = 512l;
+    static final double SNAPSHOT_FRACTION = 0.05;
+    static final int MIN_ROW_GROUP_SIZE = 4096;
+    static final int MAX_ROW_GROUP_SIZE = 256 * 1024;
+
+    // Heap usage, as a fraction of the budget, above which chunks shrink / below which they grow
+    static final double HIGH_WATER = 0.85;
+    static final double LOW_WATER = 0.50;
+
+    private final long budgetBytes;
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    // Number of collections when the loader last shrank on a reading: the same reading is not acted on twice
+    private long shrunkAtCollections = -1l;
+    private long numShrinks = 0l;
+
+    public MemoryBudget(){
+	this(0l);
+    }
+
+    // budgetBytes <= 0 means the default fraction of the max heap
+    public MemoryBudget(final long budgetBytes){
+	long maxHeap = Runtime.getRuntime().maxMemory();
+	if(budgetBytes <= 0l){
+	    this.budgetBytes = (long)(maxHeap * DEFAULT_HEAP_FRACTION);
+	}else if(budgetBytes > maxHeap){
+	    System.err.println("MemoryBudget: budget of " + budgetBytes/(1024*1024) + "MB is larger than the max heap; using max heap of " 
+			       + maxHeap/(1024*1024) + "MB");
+	    this.budgetBytes = maxHeap;
+	}else{
+	    this.budgetBytes = budgetBytes;
+	}
+	for(MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()){
+	    if(pool.getType() == MemoryType.HEAP){
+		heapPools.add(pool);
+	    }
+	}
+    }
+
+    public final long getBudgetBytes(){
+	return budgetBytes;
+    }
+
+    public final long getNumShrinks(){
+	return numShrinks;
+    }
+
+    public final int initialChunkSize(){
+	return clamp(budgetBytes / BYTES_PER_ROW, MIN_CHUNK_SIZE, MAX_CHUNK_SIZE);
+    }
+
+    public final int documentCacheSize(){
+	return clamp((long)(budgetBytes * DOCUMENT_CACHE_FRACTION) / BYTES_PER_DOCUMENT, MIN_DOCUMENT_CACHE_SIZE, MAX_DOCUMENT_CACHE_SIZE);
+    }
+
+    public final int snapshotRowGroupSize(){
+	return clamp((long)(budgetBytes * SNAPSHOT_FRACTION) / BYTES_PER_SNAPSHOT_ROW, MIN_ROW_GROUP_SIZE, MAX_ROW_GROUP_SIZE);
+    }
+
+    public final double heapUsage(){
+	return (double)memory.getHeapMemoryUsage().getUsed() / (double)budgetBytes;
+    }
+
+    // Heap in use right after the last collection of each pool: what is live, not garbage that
+    // has yet to be collected. The used heap until there has been a collection
+    public final double liveHeapUsage(){
+	long used = 0l;
+	for(MemoryPoolMXBean pool: heapPools){
+	    MemoryUsage usage = pool.getCollectionUsage();
+	    if(usage != null){
+		used += usage.getUsed();
+	    }
+	}
+	if(used == 0l){
+	    return heapUsage();
+	}
+	return (double)used / (double)budgetBytes;
+    }
+
+    // Collections run so far, over all collectors
+    final long numCollections(){
+	long n = 0l;
+	for(GarbageCollectorMXBean collector: collectors){
+	    n += Math.max(0l, collector.getCollectionCount());
+	}
+	return n;
+    }
+
+    // True once per collection that leaves the heap over the high water mark: the caller is
+    // expected to shrink what it holds, and is not told again until a collection has run since
+    public final boolean underPressure(){
+	long collections = numCollections();
+	if(collections == shrunkAtCollections || liveHeapUsage() <= HIGH_WATER){
+	    return false;
+	}
+	shrunkAtCollections = collections;
+	++numShrinks;
+	return true;
+    }
+
+    // Called between chunks: returns the size of the next chunk
+    public final int adjustChunkSize(final int chunkSize){
+	long collections = numCollections();
+	double usage = liveHeapUsage();
+	int next = nextChunkSize(chunkSize, usage, collections != shrunkAtCollections);
+	if(next < chunkSize){
+	    shrunkAtCollections = collections;
+	    ++numShrinks;
+	    System.out.println("MemoryBudget: heap at " + percent(usage) + " of budget; chunk size " + chunkSize + " -> " + next);
+	}
+	return next;
+    }
+
+    // Halves the chunk size on a fresh reading over the high water mark (a stale one was already
+    // acted on), grows it by a quarter under the low water mark
+    static final int nextChunkSize(final int chunkSize, final double usage, final boolean fresh){
+	if(usage > HIGH_WATER){
+	    return fresh? Math.max(MIN_CHUNK_SIZE, chunkSize / 2): chunkSize;
+	}
+	if(usage < LOW_WATER && chunkSize < MAX_CHUNK_SIZE){
+	    return Math.min(MAX_CHUNK_SIZE, chunkSize + chunkSize / 4);
+	}
+	return chunkSize;
+    }
+
+    public final String toString(){
+	return "budget=" + budgetBytes/(1024*1024) + "MB"
+	    + " chunkSize=" + initialChunkSize()
+	    + " documentCacheSize=" + documentCacheSize()
+	    + " snapshotRowGroupSize=" + snapshotRowGroupSize();
+    }
+
+    static final String percent(final double fraction){
+	return Math.round(fraction * 100.0) + "%";
+    }
+
+    static final int clamp(final long v, final int min, final int max){
+	return (int)Math.max(min, Math.min(max, v));
+    }
+
+}//
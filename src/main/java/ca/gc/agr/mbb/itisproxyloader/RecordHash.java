@@ -0,0 +1,94 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* RecordHash: stable 64 bit content hash of an assembled ItisRecord, computed
+   over its serialized form (the same form that is written to the BDB cache).
+ */
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import ca.gc.agr.itis.itismodel.ItisRecord;
+
+
+public class RecordHash
+{
+    static final String ALGORITHM = "MD5";
+
+    // Returned when the record cannot be hashed: never matches a stored hash
+    public static final long NO_HASH = 0l;
+
+    public static final long hash(final ItisRecord ir){
+	MessageDigest md;
+	try{
+	    md = MessageDigest.getInstance(ALGORITHM);
+	}catch(NoSuchAlgorithmException e){
+	    e.printStackTrace();
+	    return NO_HASH;
+	}
+	DigestOutputStream dos = new DigestOutputStream(md);
+	try{
+	    ObjectOutputStream oos = new ObjectOutputStream(dos);
+	    oos.writeObject(ir);
+	    oos.close();
+	}catch(IOException e){
+	    e.printStackTrace();
+	    return NO_HASH;
+	}
+	byte[] digest = md.digest();
+	long hash = 0l;
+	for(int i=0; i<8; i++){
+	    hash = (hash << 8) | (digest[i] & 0xff);
+	}
+	return hash == NO_HASH? 1l: hash;
+    }
+
+    // Size of the serialized record, i.e. roughly what is written to the cache
+    public static final long serializedSize(final ItisRecord ir){
+	CountingOutputStream cos = new CountingOutputStream();
+	try{
+	    ObjectOutputStream oos = new ObjectOutputStream(cos);
+	    oos.writeObject(ir);
+	    oos.close();
+	}catch(IOException e){
+	    e.printStackTrace();
+	    return -1l;
+	}
+	return cos.count;
+    }
+
+    static final class CountingOutputStream extends OutputStream{
+	long count = 0l;
+
+	@Override
+	public void write(final int b){
+	    ++count;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len){
+	    count += len;
+	}
+    }
+
+    static final class DigestOutputStream extends OutputStream{
+	final MessageDigest md;
+
+	DigestOutputStream(final MessageDigest md){
+	    this.md = md;
+	}
+
+	@Override
+	public void write(final int b){
+	    md.update((byte)b);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len){
+	    md.update(b, off, len);
+	}
+    }
+
+}//
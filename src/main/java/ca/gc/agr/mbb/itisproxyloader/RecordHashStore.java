@@ -0,0 +1,204 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* RecordHashStore: tsn -> content hash of the record written to the cache,
+   kept in the cache directory so that a rebuild into an existing cache can
+   skip writing records that have not changed.
+   The hashes from the previous run are read-only; the hashes of this run are
+   collected separately and replace them on save() (or are merged into them, after a
+   load that was filtered to part of the taxa).
+
+   A hash is only a reason to skip a record if that record is known to be in the cache,
+   so the file is only written at the end of a run, and marked closed only when the cache
+   was closed (its writes flushed) first; load() ignores a file that is not closed, and
+   every record is rewritten. A run that is interrupted leaves the previous file in place:
+   it still describes what the previous run flushed, and a record this run rewrote with
+   other content no longer matches its hash, so nothing is wrongly skipped.
+
+   File layout (big endian): VERSION, closed (byte), n, (tsn, hash)*
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+
+public class RecordHashStore
+{
+    public static final String FILE_NAME = "record-hashes.idx";
+    static final int VERSION = 2;
+
+    private final IntLongMap previous;
+    private final IntLongMap current = new IntLongMap(1024);
+
+    RecordHashStore(final IntLongMap previous){
+	this.previous = previous;
+    }
+
+    // Hash stored for the tsn by the previous run, or RecordHash.NO_HASH
+    public final long previous(final int tsn){
+	return previous.get(tsn);
+    }
+
+    public final int numPrevious(){
+	return previous.size();
+    }
+
+    public final int numCurrent(){
+	return current.size();
+    }
+
+    // tsn must be >= 0 (see ExistenceIndex.parseTsn): records without a valid tsn are not tracked
+    public final synchronized void put(final int tsn, final long hash){
+	if(tsn < 0){
+	    throw new IllegalArgumentException("Not a valid tsn: " + tsn);
+	}
+	if(hash != RecordHash.NO_HASH){
+	    current.put(tsn, hash);
+	}
+    }
+
+    public static final RecordHashStore load(final File dir) throws IOException{
+	File f = new File(dir, FILE_NAME);
+	if(!f.exists()){
+	    return new RecordHashStore(new IntLongMap(16));
+	}
+	DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	try{
+	    int version = dis.readInt();
+	    if(version != VERSION){
+		throw new IOException("Unsupported record hash version " + version + " in " + f);
+	    }
+	    if(!dis.readBoolean()){
+		System.err.println("RecordHashStore: " + f + " was saved without closing the cache; not skipping any record");
+		return new RecordHashStore(new IntLongMap(16));
+	    }
+	    int n = dis.readInt();
+	    IntLongMap map = new IntLongMap(n);
+	    for(int i=0; i<n; i++){
+		map.put(dis.readInt(), dis.readLong());
+	    }
+	    return new RecordHashStore(map);
+	}finally{
+	    dis.close();
+	}
+    }
+
+    // End of a run, after the cache is closed: cacheClosed is whether it was (if not, the next run
+    // does not trust these hashes). With keepUnreached, the previous hashes of the tsns this run did
+    // not load are kept (filtered loads); otherwise only this run's hashes are, so tsns that are gone are dropped
+    public final synchronized void save(final File dir, final boolean keepUnreached, final boolean cacheClosed) throws IOException{
+	write(dir, keepUnreached? merged(): current, cacheClosed);
+    }
+
+    // This run's hashes, then the previous hashes of the other tsns
+    private final IntLongMap merged(){
+	IntLongMap merged = new IntLongMap(Math.max(current.size(), previous.size()));
+	for(int i=0; i<current.keys.length; i++){
+	    if(current.used[i]){
+		merged.put(current.keys[i], current.values[i]);
+	    }
+	}
+	for(int i=0; i<previous.keys.length; i++){
+	    if(previous.used[i] && merged.get(previous.keys[i]) == RecordHash.NO_HASH){
+		merged.put(previous.keys[i], previous.values[i]);
+	    }
+	}
+	return merged;
+    }
+
+    static final void write(final File dir, final IntLongMap map, final boolean closed) throws IOException{
+	File tmp = new File(dir, FILE_NAME + ".tmp");
+	DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try{
+	    dos.writeInt(VERSION);
+	    dos.writeBoolean(closed);
+	    dos.writeInt(map.size());
+	    for(int i=0; i<map.keys.length; i++){
+		if(map.used[i]){
+		    dos.writeInt(map.keys[i]);
+		    dos.writeLong(map.values[i]);
+		}
+	    }
+	}finally{
+	    dos.close();
+	}
+	CacheVersions.replace(tmp, new File(dir, FILE_NAME));
+    }
+
+    // Open addressing int -> long map, to avoid boxing ~1M entries
+    static final class IntLongMap{
+	int[] keys;
+	long[] values;
+	boolean[] used;
+	int size = 0;
+
+	IntLongMap(final int expected){
+	    int capacity = 16;
+	    while(capacity < expected * 2){
+		capacity <<= 1;
+	    }
+	    keys = new int[capacity];
+	    values = new long[capacity];
+	    used = new boolean[capacity];
+	}
+
+	int size(){
+	    return size;
+	}
+
+	long get(final int key){
+	    int mask = keys.length - 1;
+	    for(int i=mix(key) & mask; used[i]; i = (i + 1) & mask){
+		if(keys[i] == key){
+		    return values[i];
+		}
+	    }
+	    return RecordHash.NO_HASH;
+	}
+
+	void put(final int key, final long value){
+	    if((size + 1) * 2 > keys.length){
+		grow();
+	    }
+	    int mask = keys.length - 1;
+	    int i = mix(key) & mask;
+	    while(used[i]){
+		if(keys[i] == key){
+		    values[i] = value;
+		    return;
+		}
+		i = (i + 1) & mask;
+	    }
+	    used[i] = true;
+	    keys[i] = key;
+	    values[i] = value;
+	    ++size;
+	}
+
+	void grow(){
+	    int[] oldKeys = keys;
+	    long[] oldValues = values;
+	    boolean[] oldUsed = used;
+	    keys = new int[oldKeys.length * 2];
+	    values = new long[oldKeys.length * 2];
+	    used = new boolean[oldKeys.length * 2];
+	    size = 0;
+	    for(int i=0; i<oldKeys.length; i++){
+		if(oldUsed[i]){
+		    put(oldKeys[i], oldValues[i]);
+		}
+	    }
+	}
+
+	static int mix(final int key){
+	    int h = key * 0x9E3779B9;
+	    return h ^ (h >>> 16);
+	}
+    }
+
+}//
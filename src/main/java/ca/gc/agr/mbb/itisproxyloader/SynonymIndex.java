@@ -0,0 +1,220 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* SynonymIndex: dense synonym resolution table built in one pass over synonym_links:
+   unaccepted tsn -> accepted tsn(s), and accepted tsn -> synonym tsns.
+
+   Each direction is a sorted array of keys, with offsets into an array of values
+   (values of keys[i] are values[offsets[i]] .. values[offsets[i+1]-1]). The values of a key
+   are in synonym_links order, duplicate links included, as a join on synonym_links returns them.
+   ItisLoader uses it in memory and writes it to the cache directory, where readers
+   can memory map it: resolving a name is then a binary search and an array slice.
+
+   File layout (big endian ints):
+   --
+   MAGIC, VERSION
+   numKeys, numValues, keys[numKeys], offsets[numKeys+1], values[numValues]    unaccepted -> accepted
+   numKeys, numValues, keys[numKeys], offsets[numKeys+1], values[numValues]    accepted -> synonyms
+   --
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+
+public class SynonymIndex
+{
+    public static final String FILE_NAME = "synonyms.idx";
+    static final int MAGIC = 0x49545359; // "ITSY"
+    static final int VERSION = 1;
+
+    static final int[] NONE = new int[0];
+
+    private final Table acceptedOf;
+    private final Table synonymsOf;
+
+    SynonymIndex(final Table acceptedOf, final Table synonymsOf){
+	this.acceptedOf = acceptedOf;
+	this.synonymsOf = synonymsOf;
+    }
+
+    // Accepted tsn(s) of an unaccepted tsn; empty if the tsn is not a synonym
+    public final int[] acceptedOf(final int tsn){
+	return acceptedOf.get(tsn);
+    }
+
+    // Synonym tsns of an accepted tsn; empty if it has none
+    public final int[] synonymsOf(final int tsn){
+	return synonymsOf.get(tsn);
+    }
+
+    public final int numLinks(){
+	return acceptedOf.values.limit();
+    }
+
+    public static final SynonymIndex build(final Connection connection) throws SQLException{
+	int[] tsns = new int[1024];
+	int[] accepted = new int[1024];
+	int n = 0;
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery("select tsn, tsn_accepted from synonym_links order by rowid");
+	try{
+	    while(rs.next()){
+		if(n == tsns.length){
+		    tsns = Arrays.copyOf(tsns, n * 2);
+		    accepted = Arrays.copyOf(accepted, n * 2);
+		}
+		tsns[n] = rs.getInt(1);
+		accepted[n] = rs.getInt(2);
+		++n;
+	    }
+	}finally{
+	    ItisLoader.closeAll(statement, rs);
+	}
+	return of(Arrays.copyOf(tsns, n), Arrays.copyOf(accepted, n));
+    }
+
+    // From the links (tsns[i], accepted[i]) in synonym_links order
+    static final SynonymIndex of(final int[] tsns, final int[] accepted){
+	return new SynonymIndex(Table.of(tsns, accepted), Table.of(accepted, tsns));
+    }
+
+    public final void write(final File dir) throws IOException{
+	File tmp = new File(dir, FILE_NAME + ".tmp");
+	DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try{
+	    dos.writeInt(MAGIC);
+	    dos.writeInt(VERSION);
+	    acceptedOf.write(dos);
+	    synonymsOf.write(dos);
+	}finally{
+	    dos.close();
+	}
+	CacheVersions.replace(tmp, new File(dir, FILE_NAME));
+    }
+
+    // Memory maps the index in the cache directory; returns null if there is none
+    public static final SynonymIndex open(final File dir) throws IOException{
+	File f = new File(dir, FILE_NAME);
+	if(!f.exists()){
+	    return null;
+	}
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	try{
+	    MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+	    IntBuffer ints = mapped.asIntBuffer();
+	    if(ints.get(0) != MAGIC || ints.get(1) != VERSION){
+		throw new IOException("Not a synonym index, or unsupported version: " + f);
+	    }
+	    ints.position(2);
+	    Table acceptedOf = Table.read(ints);
+	    Table synonymsOf = Table.read(ints);
+	    return new SynonymIndex(acceptedOf, synonymsOf);
+	}finally{
+	    // The mapping stays valid after the channel is closed
+	    raf.close();
+	}
+    }
+
+    static final class Table{
+	final IntBuffer keys;
+	final IntBuffer offsets;
+	final IntBuffer values;
+
+	Table(final IntBuffer keys, final IntBuffer offsets, final IntBuffer values){
+	    this.keys = keys;
+	    this.offsets = offsets;
+	    this.values = values;
+	}
+
+	// Grouped by key; the values of a key stay in the order they were given
+	static Table of(final int[] keyOf, final int[] valueOf){
+	    // (key << 32 | position): sorts by key, then by position
+	    long[] order = new long[keyOf.length];
+	    for(int i=0; i<order.length; i++){
+		order[i] = ((long)keyOf[i] << 32) | i;
+	    }
+	    Arrays.sort(order);
+	    int numKeys = 0;
+	    for(int i=0; i<order.length; i++){
+		if(i == 0 || (order[i] >>> 32) != (order[i-1] >>> 32)){
+		    ++numKeys;
+		}
+	    }
+	    int[] keys = new int[numKeys];
+	    int[] offsets = new int[numKeys + 1];
+	    int[] values = new int[order.length];
+	    int k = -1;
+	    for(int i=0; i<order.length; i++){
+		int key = (int)(order[i] >>> 32);
+		if(k < 0 || keys[k] != key){
+		    keys[++k] = key;
+		    offsets[k] = i;
+		}
+		values[i] = valueOf[(int)order[i]];
+	    }
+	    offsets[numKeys] = order.length;
+	    return new Table(IntBuffer.wrap(keys), IntBuffer.wrap(offsets), IntBuffer.wrap(values));
+	}
+
+	static Table read(final IntBuffer ints){
+	    int numKeys = ints.get();
+	    int numValues = ints.get();
+	    IntBuffer keys = slice(ints, numKeys);
+	    IntBuffer offsets = slice(ints, numKeys + 1);
+	    IntBuffer values = slice(ints, numValues);
+	    return new Table(keys, offsets, values);
+	}
+
+	static IntBuffer slice(final IntBuffer ints, final int n){
+	    IntBuffer slice = ints.slice();
+	    slice.limit(n);
+	    ints.position(ints.position() + n);
+	    return slice;
+	}
+
+	void write(final DataOutputStream dos) throws IOException{
+	    dos.writeInt(keys.limit());
+	    dos.writeInt(values.limit());
+	    for(IntBuffer b: new IntBuffer[]{keys, offsets, values}){
+		for(int i=0; i<b.limit(); i++){
+		    dos.writeInt(b.get(i));
+		}
+	    }
+	}
+
+	int[] get(final int key){
+	    int lo = 0;
+	    int hi = keys.limit() - 1;
+	    while(lo <= hi){
+		int mid = (lo + hi) >>> 1;
+		int k = keys.get(mid);
+		if(k < key){
+		    lo = mid + 1;
+		}else if(k > key){
+		    hi = mid - 1;
+		}else{
+		    int from = offsets.get(mid);
+		    int[] result = new int[offsets.get(mid + 1) - from];
+		    for(int i=0; i<result.length; i++){
+			result[i] = values.get(from + i);
+		    }
+		    return result;
+		}
+	    }
+	    return NONE;
+	}
+    }
+
+}//
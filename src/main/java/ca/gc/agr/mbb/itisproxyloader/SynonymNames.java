@@ -0,0 +1,85 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* SynonymNames: complete name and short author of every tsn on either side of synonym_links,
+   read in one scan, so that the synonym and accepted name lists of a record are built from
+   the SynonymIndex with array lookups instead of a join per tsn.
+
+   Same rows as the joins it replaces (taxonomic_units with strippedauthor on taxon_author_id):
+   a linked tsn that is not in taxonomic_units, or whose author is not in strippedauthor,
+   has no entry, and its links are left out of the lists as the joins leave them out.
+ */
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+
+public class SynonymNames
+{
+    static final String SQL = "select taxonomic_units.tsn, taxonomic_units.complete_name, strippedauthor.shortauthor"
+	+ " from taxonomic_units, strippedauthor"
+	+ " where taxonomic_units.taxon_author_id = strippedauthor.taxon_author_id"
+	+ " and taxonomic_units.tsn in (select tsn from synonym_links union select tsn_accepted from synonym_links)"
+	+ " order by taxonomic_units.tsn";
+
+    // Sorted; names[i] and authors[i] are those of tsns[i]
+    private final int[] tsns;
+    private final String[] names;
+    private final String[] authors;
+
+    SynonymNames(final int[] tsns, final String[] names, final String[] authors){
+	this.tsns = tsns;
+	this.names = names;
+	this.authors = authors;
+    }
+
+    // Index of the tsn, for name() and author(); negative if it has no entry
+    public final int indexOf(final int tsn){
+	return Arrays.binarySearch(tsns, tsn);
+    }
+
+    public final String name(final int i){
+	return names[i];
+    }
+
+    public final String author(final int i){
+	return authors[i];
+    }
+
+    public final int size(){
+	return tsns.length;
+    }
+
+    public static final SynonymNames build(final Connection connection) throws SQLException{
+	int[] tsns = new int[1024];
+	String[] names = new String[1024];
+	String[] authors = new String[1024];
+	int n = 0;
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery(SQL);
+	try{
+	    while(rs.next()){
+		int tsn = rs.getInt(1);
+		// strippedauthor is one row per author: a second row would only repeat the tsn
+		if(n > 0 && tsns[n-1] == tsn){
+		    continue;
+		}
+		if(n == tsns.length){
+		    tsns = Arrays.copyOf(tsns, n * 2);
+		    names = Arrays.copyOf(names, n * 2);
+		    authors = Arrays.copyOf(authors, n * 2);
+		}
+		tsns[n] = tsn;
+		names[n] = rs.getString(2);
+		authors[n] = rs.getString(3);
+		++n;
+	    }
+	}finally{
+	    ItisLoader.closeAll(statement, rs);
+	}
+	return new SynonymNames(Arrays.copyOf(tsns, n), Arrays.copyOf(names, n), Arrays.copyOf(authors, n));
+    }
+
+}//
@@ -0,0 +1,602 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* SyntheticItisGenerator: writes a synthetic ITIS SQLite database, with the tables and
+   columns that ItisLoader reads, for load time and memory tests beyond the size of the
+   real ITIS export (~900k taxa), and with deeper or wider trees than ITIS has.
+
+   The output is determined by the seed and the options: same seed, same database.
+
+   Tree: taxa are created breadth first from the kingdoms. Each taxon that is not at the
+   maximum depth gets a Poisson(branching) number of children, until there are as many
+   taxa as asked for (if the tree fills up before that, the walk starts again from the top
+   and adds more children). By default the branching is the one that fills the tree down to
+   the maximum depth with the number of taxa, so that most taxa are at the bottom rank as in
+   ITIS; a larger branching gives wide trees that stop short of the maximum depth. The
+   levels are mapped onto ITIS ranks, Kingdom to Species; trees deeper than the ITIS ranks
+   repeat the last rank. Names are derived from the tsn, so they are unique and need no memory.
+
+   Child rows: each accepted taxon gets Poisson(mean) vernaculars, comments, jurisdictions,
+   geographic divisions and reference links. A fraction of the taxa below the kingdoms are
+   created as unaccepted synonyms (with a synonym_links row) of the taxon created just before
+   them, at most one per accepted taxon, so the fraction is at most 0.5. Reference
+   links point to shared pools of publications, experts and other sources, with a few
+   documents referenced by many taxa, as in ITIS.
+
+   The indexes listed in the README are created after the rows are inserted.
+ */
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+
+public class SyntheticItisGenerator
+{
+    static final String OPTION_SEED = "--seed";
+    static final String OPTION_TAXA = "--taxa";
+    static final String OPTION_KINGDOMS = "--kingdoms";
+    static final String OPTION_BRANCHING = "--branching";
+    static final String OPTION_DEPTH = "--depth";
+    static final String OPTION_SYNONYMS = "--synonyms";
+    static final String OPTION_VERNACULARS = "--vernaculars";
+    static final String OPTION_COMMENTS = "--comments";
+    static final String OPTION_JURISDICTIONS = "--jurisdictions";
+    static final String OPTION_GEO_DIVISIONS = "--geo-divisions";
+    static final String OPTION_REFERENCES = "--references";
+
+    static final int BATCH_SIZE = 10000;
+
+    static final String[] KINGDOM_NAMES = {"Bacteria", "Protozoa", "Plantae", "Fungi", "Animalia", "Chromista", "Archaea"};
+    static final int[] RANK_IDS = {10, 20, 30, 40, 50, 60, 70, 80, 90, 100, 110, 120, 130, 140, 150, 160, 170, 180, 190, 220, 230, 240};
+    static final String[] RANK_NAMES = {"Kingdom", "Subkingdom", "Phylum", "Subphylum", "Superclass", "Class", "Subclass", "Infraclass",
+					"Superorder", "Order", "Suborder", "Infraorder", "Superfamily", "Family", "Subfamily", "Tribe",
+					"Subtribe", "Genus", "Subgenus", "Species", "Subspecies", "Variety"};
+    static final int SPECIES = 19;
+    static final String[] UNIT_INDS = {null, "ssp.", "var."};
+
+    static final String[] SYLLABLES = {"ba", "ce", "di", "fo", "gu", "ha", "ke", "li", "mo", "nu",
+				       "pa", "re", "si", "to", "vu", "xa", "ze", "lo", "ri", "an"};
+    static final String[] LANGUAGES = {"English", "English", "English", "English", "French", "French", "Spanish", "Spanish",
+				       "Portuguese", "Hawaiian"};
+    static final String[] JURISDICTIONS = {"Alaska", "Canada", "Continental US", "Guam", "Hawaii", "North America", "Puerto Rico"};
+    static final String[] ORIGINS = {"Native", "Native", "Native", "Introduced", "Native & Introduced"};
+    static final String[] GEO_DIVISIONS = {"Africa", "Australia", "Eurasia", "North America", "Oceania", "South America",
+					   "Middle America", "Antarctica"};
+    static final String[] SOURCE_TYPES = {"database", "website", "expert", "other"};
+
+    // Options
+    long seed = 1l;
+    int numTaxa = 100000;
+    int numKingdoms = KINGDOM_NAMES.length;
+    // 0: derived from the number of taxa and the depth
+    double branching = 0.0;
+    int depth = 12;
+    double synonymRate = 0.2;
+    double vernacularsPerTaxon = 0.3;
+    double commentsPerTaxon = 0.1;
+    double jurisdictionsPerTaxon = 0.5;
+    double geoDivisionsPerTaxon = 0.3;
+    double referencesPerTaxon = 1.0;
+    // Progress on stdout; set by main, off for generators used in tests
+    boolean verbose = false;
+
+    private Random random;
+    private int[] parents;
+    private byte[] levels;
+    private byte[] kingdoms;
+    private boolean[] synonyms;
+    private int numPublications;
+    private int numExperts;
+    private int numOtherSources;
+    private int numAuthors;
+    private long nextVernId = 1l;
+    private long nextCommentId = 1l;
+
+    private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+
+    public static final void usage(){
+	System.err.println("\n\tUsage: java ca.gc.agr.mbb.itisproxyloader.SyntheticItisGenerator [options] location_of_new_sqlite_db\n");
+	System.err.println("\tOptions:");
+	System.err.println("\t  " + OPTION_SEED + "=N    random seed (default: 1); the same seed and options give the same database");
+	System.err.println("\t  " + OPTION_TAXA + "=N    number of taxonomic_units rows, synonyms included (default: 100000)");
+	System.err.println("\t  " + OPTION_KINGDOMS + "=N    number of kingdoms, 1-" + KINGDOM_NAMES.length + " (default: " + KINGDOM_NAMES.length + ")");
+	System.err.println("\t  " + OPTION_BRANCHING + "=mean    mean number of children of a taxon (default: what fills the tree down to the max depth)");
+	System.err.println("\t  " + OPTION_DEPTH + "=N    maximum number of levels, kingdoms included (default: 12)");
+	System.err.println("\t  " + OPTION_SYNONYMS + "=fraction    fraction of taxa that are unaccepted synonyms, at most 0.5 (default: 0.2)");
+	System.err.println("\t  " + OPTION_VERNACULARS + "=mean    mean vernaculars per accepted taxon (default: 0.3)");
+	System.err.println("\t  " + OPTION_COMMENTS + "=mean    mean comments per accepted taxon (default: 0.1)");
+	System.err.println("\t  " + OPTION_JURISDICTIONS + "=mean    mean jurisdictions per accepted taxon (default: 0.5)");
+	System.err.println("\t  " + OPTION_GEO_DIVISIONS + "=mean    mean geographic divisions per accepted taxon (default: 0.3)");
+	System.err.println("\t  " + OPTION_REFERENCES + "=mean    mean reference links per accepted taxon (default: 1)\n");
+	System.exit(42);
+    }
+
+    public static final void main(final String[] args){
+	SyntheticItisGenerator generator = new SyntheticItisGenerator();
+	List<String> positional = generator.parseOptions(args);
+	if(positional.size() != 1){
+	    usage();
+	}
+	File dbFile = new File(positional.get(0));
+	if(dbFile.exists()){
+	    System.err.println("Not overwriting existing file: " + dbFile);
+	    System.exit(1);
+	}
+	try{
+	    Class.forName(ItisLoader.DRIVER_NAME);
+	    generator.verbose = true;
+	    generator.generate("jdbc:sqlite:/" + dbFile.getAbsolutePath());
+	}catch(Throwable t){
+	    t.printStackTrace();
+	    System.exit(1);
+	}
+    }
+
+    // Consumes --key=value options, returns the remaining positional arguments
+    final List<String> parseOptions(final String[] args){
+	List<String> positional = new ArrayList<String>();
+	for(String arg: args){
+	    if(!arg.startsWith(ItisLoader.OPTION_PREFIX)){
+		positional.add(arg);
+		continue;
+	    }
+	    int eq = arg.indexOf('=');
+	    String key = eq < 0? arg: arg.substring(0, eq);
+	    String value = eq < 0? null: arg.substring(eq + 1);
+	    try{
+		if(key.equals(OPTION_SEED) && value != null){
+		    seed = Long.parseLong(value);
+		}else if(key.equals(OPTION_TAXA) && value != null){
+		    numTaxa = Integer.parseInt(value);
+		}else if(key.equals(OPTION_KINGDOMS) && value != null){
+		    numKingdoms = Integer.parseInt(value);
+		}else if(key.equals(OPTION_BRANCHING) && value != null){
+		    branching = Double.parseDouble(value);
+		}else if(key.equals(OPTION_DEPTH) && value != null){
+		    depth = Integer.parseInt(value);
+		}else if(key.equals(OPTION_SYNONYMS) && value != null){
+		    synonymRate = Double.parseDouble(value);
+		}else if(key.equals(OPTION_VERNACULARS) && value != null){
+		    vernacularsPerTaxon = Double.parseDouble(value);
+		}else if(key.equals(OPTION_COMMENTS) && value != null){
+		    commentsPerTaxon = Double.parseDouble(value);
+		}else if(key.equals(OPTION_JURISDICTIONS) && value != null){
+		    jurisdictionsPerTaxon = Double.parseDouble(value);
+		}else if(key.equals(OPTION_GEO_DIVISIONS) && value != null){
+		    geoDivisionsPerTaxon = Double.parseDouble(value);
+		}else if(key.equals(OPTION_REFERENCES) && value != null){
+		    referencesPerTaxon = Double.parseDouble(value);
+		}else{
+		    System.err.println("\n\tERROR: Unknown or incomplete option: " + arg);
+		    usage();
+		}
+	    }catch(NumberFormatException e){
+		System.err.println("\n\tERROR: Not a number: " + arg);
+		usage();
+	    }
+	}
+	if(numKingdoms < 1 || numKingdoms > KINGDOM_NAMES.length || numTaxa < numKingdoms || depth < 2 || depth > Byte.MAX_VALUE
+	   || branching < 0.0 || synonymRate < 0.0 || synonymRate > 0.5){
+	    System.err.println("\n\tERROR: Out of range: need 1 <= kingdoms <= " + KINGDOM_NAMES.length
+			       + ", taxa >= kingdoms, 2 <= depth <= " + Byte.MAX_VALUE + ", branching >= 0, 0 <= synonyms <= 0.5");
+	    usage();
+	}
+	return positional;
+    }
+
+    public final void generate(final String url) throws SQLException{
+	Connection connection = DriverManager.getConnection(url);
+	try{
+	    generate(connection);
+	}finally{
+	    connection.close();
+	}
+    }
+
+    // Creates the tables in an empty database, fills them and indexes them
+    public final void generate(final Connection connection) throws SQLException{
+	long start = System.currentTimeMillis();
+	random = new Random(seed);
+	parents = new int[numTaxa];
+	levels = new byte[numTaxa];
+	kingdoms = new byte[numTaxa];
+	synonyms = new boolean[numTaxa];
+	numPublications = 1 + numTaxa / 50;
+	numExperts = 1 + numTaxa / 1000;
+	numOtherSources = 1 + numTaxa / 200;
+	numAuthors = 1 + numTaxa / 20;
+	if(branching == 0.0){
+	    branching = fillingBranching(numTaxa, numKingdoms, depth, synonymsPerChild());
+	}
+	if(verbose){
+	    System.out.println("****************Generating " + numTaxa + " taxa: seed=" + seed + " kingdoms=" + numKingdoms + " branching=" + branching
+			       + " depth=" + depth + " synonyms=" + synonymRate);
+	}
+
+	try{
+	    createTables(connection);
+	    connection.setAutoCommit(false);
+	    prepare(connection);
+	    makeLookups();
+	    makeTaxa();
+	    for(Table table: tables.values()){
+		table.close();
+	    }
+	    connection.commit();
+	    connection.setAutoCommit(true);
+	    createIndexes(connection);
+	}finally{
+	    for(Table table: tables.values()){
+		table.close();
+	    }
+	}
+	if(verbose){
+	    for(Table table: tables.values()){
+		System.out.println("****************" + table.name + ": " + table.numRows);
+	    }
+	    System.out.println("****************Generated in seconds: " + (System.currentTimeMillis() - start) / 1000.0);
+	}
+    }
+
+    static final String[] CREATE_TABLES = {
+	"create table kingdoms (kingdom_id integer, kingdom_name text, update_date text)",
+	"create table taxon_unit_types (kingdom_id integer, rank_id integer, rank_name text, dir_parent_rank_id integer, req_parent_rank_id integer, update_date text)",
+	"create table taxonomic_units (tsn integer, unit_ind1 text, unit_name1 text, unit_ind2 text, unit_name2 text, unit_ind3 text, unit_name3 text,"
+	+ " unit_ind4 text, unit_name4 text, name_usage text, unaccept_reason text, credibility_rtng text, completeness_rtng text, currency_rating text,"
+	+ " parent_tsn integer, taxon_author_id integer, kingdom_id integer, rank_id integer, update_date text, complete_name text)",
+	"create table taxon_authors_lkp (taxon_author_id integer, taxon_author text, update_date text, kingdom_id integer, short_author text)",
+	"create table strippedauthor (taxon_author_id integer, shortauthor text)",
+	"create table synonym_links (tsn integer, tsn_accepted integer, update_date text)",
+	"create table vernaculars (tsn integer, vernacular_name text, language text, approved_ind text, update_date text, vern_id integer)",
+	"create table comments (comment_id integer, commentator text, comment_detail text, comment_time_stamp text, update_date text)",
+	"create table tu_comments_links (tsn integer, comment_id integer, update_date text)",
+	"create table jurisdiction (tsn integer, jurisdiction_value text, origin text, update_date text)",
+	"create table geographic_div (tsn integer, geographic_value text, update_date text)",
+	"create table reference_links (tsn integer, doc_id_prefix text, documentation_id integer, original_desc_ind text, update_date text)",
+	"create table publications (publication_id integer, reference_author text, title text, publication_name text, listed_pub_date text,"
+	+ " actual_pub_date text, publisher text, pub_place text, isbn text, issn text, pages text, pub_comment text, update_date text)",
+	"create table experts (expert_id integer, expert text, exp_comment text, update_date text)",
+	"create table other_sources (source_id integer, source_type text, source text, version text, acquisition_date text, source_comment text, update_date text)"
+    };
+
+    // The README indexes, and the ones the per-tsn and per-document lookups need
+    static final String[] CREATE_INDEXES = {
+	"create index jurisdiction_jurisdiction_index_tsn on jurisdiction (tsn)",
+	"create index taxonomic_units_tsn_index on taxonomic_units (tsn)",
+	"create index taxonomic_units_parent_tsn_index on taxonomic_units (parent_tsn)",
+	"create index strippedauthor_author_id_index on strippedauthor (taxon_author_id)",
+	"create index synonym_links_tsn_index on synonym_links (tsn)",
+	"create index synonym_links_tsn_accepted_index on synonym_links (tsn_accepted)",
+	"create index taxonomic_units_taxon_author_id_index on taxonomic_units (taxon_author_id)",
+	"create index vernaculars_tsn_index on vernaculars (tsn)",
+	"create index tu_comments_links_tsn_index on tu_comments_links (tsn)",
+	"create index comments_comment_id_index on comments (comment_id)",
+	"create index geographic_div_tsn_index on geographic_div (tsn)",
+	"create index reference_links_tsn_index on reference_links (tsn)",
+	"create index publications_publication_id_index on publications (publication_id)",
+	"create index experts_expert_id_index on experts (expert_id)",
+	"create index other_sources_source_id_index on other_sources (source_id)",
+	"create index taxon_authors_lkp_taxon_author_id_index on taxon_authors_lkp (taxon_author_id)",
+	"create index taxon_unit_types_rank_id_index on taxon_unit_types (rank_id)",
+	"create index kingdoms_kingdom_id_index on kingdoms (kingdom_id)"
+    };
+
+    static final void createTables(final Connection connection) throws SQLException{
+	executeAll(connection, CREATE_TABLES);
+    }
+
+    static final void createIndexes(final Connection connection) throws SQLException{
+	executeAll(connection, CREATE_INDEXES);
+    }
+
+    static final void executeAll(final Connection connection, final String[] sqls) throws SQLException{
+	Statement statement = connection.createStatement();
+	try{
+	    for(String sql: sqls){
+		statement.executeUpdate(sql);
+	    }
+	}finally{
+	    statement.close();
+	}
+    }
+
+    final void prepare(final Connection connection) throws SQLException{
+	for(String sql: CREATE_TABLES){
+	    String name = sql.substring("create table ".length(), sql.indexOf(' ', "create table ".length()));
+	    int numColumns = sql.split(",").length;
+	    tables.put(name, new Table(connection, name, numColumns));
+	}
+    }
+
+    final Table table(final String name){
+	return tables.get(name);
+    }
+
+    // Kingdoms, ranks, authors and the shared document pools
+    final void makeLookups() throws SQLException{
+	for(int k=1; k<=numKingdoms; k++){
+	    table("kingdoms").insert(k, KINGDOM_NAMES[k-1], date());
+	    for(int r=0; r<RANK_IDS.length; r++){
+		int parentRank = r == 0? 0: RANK_IDS[r-1];
+		table("taxon_unit_types").insert(k, RANK_IDS[r], RANK_NAMES[r], parentRank, parentRank, date());
+	    }
+	}
+	for(int a=1; a<=numAuthors; a++){
+	    String author = name(a) + ", " + (1753 + random.nextInt(260));
+	    table("taxon_authors_lkp").insert(a, author, date(), 1 + random.nextInt(numKingdoms), author.replace(",", ""));
+	    table("strippedauthor").insert(a, author.replace(",", ""));
+	}
+	for(int p=1; p<=numPublications; p++){
+	    String year = Integer.toString(1900 + random.nextInt(114));
+	    table("publications").insert(p, name(p + 7), "On the " + name(p + 11).toLowerCase(Locale.ROOT) + " of " + name(p + 13),
+					 "Journal of " + name(1 + p % 97), year, year, name(p % 31) + " Press", name(p % 53),
+					 null, String.format(Locale.ROOT, "%04d-%04d", p % 10000, (p * 7) % 10000),
+					 (1 + random.nextInt(300)) + "-" + (301 + random.nextInt(300)), null, date());
+	}
+	for(int e=1; e<=numExperts; e++){
+	    table("experts").insert(e, name(e + 17) + ", " + name(e + 19), "Taxonomic expert", date());
+	}
+	for(int s=1; s<=numOtherSources; s++){
+	    table("other_sources").insert(s, SOURCE_TYPES[random.nextInt(SOURCE_TYPES.length)], name(s + 23) + " database",
+					  Integer.toString(1 + random.nextInt(10)), date(), null, date());
+	}
+    }
+
+    final void makeTaxa() throws SQLException{
+	int n = 0;
+	for(int k=0; k<numKingdoms; k++){
+	    parents[n] = 0;
+	    levels[n] = 0;
+	    kingdoms[n] = (byte)(k + 1);
+	    addTaxon(n++);
+	}
+	// Breadth first; wraps around to add more children when the tree is full at the max depth
+	int cursor = 0;
+	while(n < numTaxa){
+	    if(cursor == n){
+		cursor = 0;
+	    }
+	    int p = cursor++;
+	    if(synonyms[p] || levels[p] >= depth - 1){
+		continue;
+	    }
+	    int numChildren = poisson(branching);
+	    for(int c=0; c<numChildren && n < numTaxa; c++){
+		int child = n++;
+		parents[child] = p + 1;
+		levels[child] = (byte)(levels[p] + 1);
+		kingdoms[child] = kingdoms[p];
+		addTaxon(child);
+		if(n < numTaxa && random.nextDouble() < synonymsPerChild()){
+		    int synonym = n++;
+		    parents[synonym] = p + 1;
+		    levels[synonym] = levels[child];
+		    kingdoms[synonym] = kingdoms[child];
+		    synonyms[synonym] = true;
+		    addTaxon(synonym);
+		    table("synonym_links").insert(synonym + 1, child + 1, date());
+		}
+	    }
+	}
+    }
+
+    // Taxon i has tsn i+1; its parent tsn is parents[i]
+    final void addTaxon(final int i) throws SQLException{
+	int tsn = i + 1;
+	int rank = rankIndex(levels[i]);
+	int kingdomId = kingdoms[i];
+	String[] units = new String[8];
+	String completeName;
+	if(rank < SPECIES){
+	    units[1] = name(tsn);
+	    completeName = units[1];
+	}else{
+	    // Genus epithet [ind epithet]...: walk up to the nearest taxon above species rank
+	    List<Integer> chain = new ArrayList<Integer>();
+	    int t = tsn;
+	    while(t > 0 && rankIndex(levels[t-1]) >= SPECIES && chain.size() < 3){
+		chain.add(0, t);
+		t = parents[t-1];
+	    }
+	    units[1] = name(t > 0? t: tsn);
+	    StringBuilder sb = new StringBuilder(units[1]);
+	    for(int c=0; c<chain.size(); c++){
+		String ind = c == 0? null: UNIT_INDS[Math.min(c, UNIT_INDS.length - 1)];
+		units[2*c + 2] = ind;
+		units[2*c + 3] = name(chain.get(c)).toLowerCase(Locale.ROOT);
+		if(ind != null){
+		    sb.append(' ').append(ind);
+		}
+		sb.append(' ').append(units[2*c + 3]);
+	    }
+	    completeName = sb.toString();
+	}
+	boolean synonym = synonyms[i];
+	String usage = synonym? ExistenceIndex.USAGE_NOT_ACCEPTED
+	    : (kingdomId == 2 || kingdomId == 5? ExistenceIndex.USAGE_VALID: ExistenceIndex.USAGE_ACCEPTED);
+	table("taxonomic_units").insert(tsn, units[0], units[1], units[2], units[3], units[4], units[5], units[6], units[7],
+					usage, synonym? "synonym": null, "TWG standards met", "complete", "current",
+					parents[i], 1 + random.nextInt(numAuthors), kingdomId, RANK_IDS[rank], date(), completeName);
+	if(synonym){
+	    return;
+	}
+
+	for(int v=poisson(vernacularsPerTaxon); v>0; v--){
+	    // Names drawn from a skewed pool, so that many taxa share them
+	    String vernacular = name(1 + skewed(Math.max(100, numTaxa / 10))).toLowerCase(Locale.ROOT);
+	    table("vernaculars").insert(tsn, vernacular, LANGUAGES[random.nextInt(LANGUAGES.length)], "Y", date(), nextVernId++);
+	}
+	for(int c=poisson(commentsPerTaxon); c>0; c--){
+	    long commentId = nextCommentId++;
+	    table("comments").insert(commentId, name(1 + random.nextInt(numAuthors)), "Comment " + commentId + " on " + completeName, date(), date());
+	    table("tu_comments_links").insert(tsn, commentId, date());
+	}
+	for(int j=poisson(jurisdictionsPerTaxon); j>0; j--){
+	    table("jurisdiction").insert(tsn, JURISDICTIONS[random.nextInt(JURISDICTIONS.length)], ORIGINS[random.nextInt(ORIGINS.length)], date());
+	}
+	for(int g=poisson(geoDivisionsPerTaxon); g>0; g--){
+	    table("geographic_div").insert(tsn, GEO_DIVISIONS[random.nextInt(GEO_DIVISIONS.length)], date());
+	}
+	for(int r=poisson(referencesPerTaxon); r>0; r--){
+	    double d = random.nextDouble();
+	    if(d < 0.7){
+		table("reference_links").insert(tsn, ItisLoader.DOC_TYPE_PUB, 1 + skewed(numPublications), "N", date());
+	    }else if(d < 0.95){
+		table("reference_links").insert(tsn, ItisLoader.DOC_TYPE_SRC, 1 + skewed(numOtherSources), "N", date());
+	    }else{
+		table("reference_links").insert(tsn, ItisLoader.DOC_TYPE_EXP, 1 + skewed(numExperts), "N", date());
+	    }
+	}
+    }
+
+    // Probability that an accepted child is followed by a synonym: rate / (1 - rate) synonyms per
+    // accepted taxon make synonyms the given fraction of the taxa below the kingdoms
+    final double synonymsPerChild(){
+	return synonymRate / (1.0 - synonymRate);
+    }
+
+    // Branching b such that kingdoms * (1 + (1 + synonymsPerChild) * (b + b^2 + ... + b^(depth-1))) = taxa
+    static final double fillingBranching(final int numTaxa, final int numKingdoms, final int depth, final double synonymsPerChild){
+	double lo = 0.0;
+	double hi = numTaxa;
+	for(int i=0; i<100; i++){
+	    double b = (lo + hi) / 2.0;
+	    double perLevel = 1.0;
+	    double total = 0.0;
+	    for(int l=1; l<depth && total < numTaxa; l++){
+		perLevel *= b;
+		total += perLevel;
+	    }
+	    if(numKingdoms * (1.0 + (1.0 + synonymsPerChild) * total) < numTaxa){
+		lo = b;
+	    }else{
+		hi = b;
+	    }
+	}
+	return hi;
+    }
+
+    // Levels spread evenly over Kingdom..Species; levels past the ITIS ranks repeat the last one
+    final int rankIndex(final int level){
+	if(depth - 1 <= SPECIES){
+	    return (int)Math.round(level * (double)SPECIES / (depth - 1));
+	}
+	return Math.min(level, RANK_IDS.length - 1);
+    }
+
+    // Unique pronounceable name of n > 0: its base 20 digits as syllables
+    static final String name(final long n){
+	StringBuilder sb = new StringBuilder();
+	long m = n;
+	do{
+	    sb.append(SYLLABLES[(int)(m % SYLLABLES.length)]);
+	    m /= SYLLABLES.length;
+	}while(m > 0);
+	if(sb.length() < 4){
+	    sb.append("na");
+	}
+	sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+	return sb.toString();
+    }
+
+    // In [0, n): low values are much more likely, like the most cited documents
+    final int skewed(final int n){
+	double d = random.nextDouble();
+	return Math.min(n - 1, (int)(n * d * d * d));
+    }
+
+    // Knuth's method for small means, normal approximation for large ones
+    final int poisson(final double mean){
+	if(mean <= 0.0){
+	    return 0;
+	}
+	if(mean > 30.0){
+	    return Math.max(0, (int)Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+	}
+	double limit = Math.exp(-mean);
+	double p = random.nextDouble();
+	int k = 0;
+	while(p > limit){
+	    p *= random.nextDouble();
+	    ++k;
+	}
+	return k;
+    }
+
+    final String date(){
+	return String.format(Locale.ROOT, "%04d-%02d-%02d", 1996 + random.nextInt(18), 1 + random.nextInt(12), 1 + random.nextInt(28));
+    }
+
+    // Batched inserts into one table
+    static final class Table{
+	final String name;
+	final int numColumns;
+	final PreparedStatement statement;
+	int numPending = 0;
+	long numRows = 0l;
+	boolean closed = false;
+
+	Table(final Connection connection, final String name, final int numColumns) throws SQLException{
+	    this.name = name;
+	    this.numColumns = numColumns;
+	    StringBuilder sb = new StringBuilder("insert into " + name + " values (");
+	    for(int i=0; i<numColumns; i++){
+		sb.append(i == 0? "?": ",?");
+	    }
+	    sb.append(')');
+	    statement = connection.prepareStatement(sb.toString());
+	}
+
+	void insert(final Object... values) throws SQLException{
+	    if(values.length != numColumns){
+		throw new IllegalArgumentException(name + ": " + values.length + " values for " + numColumns + " columns");
+	    }
+	    for(int i=0; i<values.length; i++){
+		Object v = values[i];
+		if(v == null){
+		    statement.setNull(i + 1, Types.VARCHAR);
+		}else if(v instanceof Integer){
+		    statement.setInt(i + 1, (Integer)v);
+		}else if(v instanceof Long){
+		    statement.setLong(i + 1, (Long)v);
+		}else{
+		    statement.setString(i + 1, v.toString());
+		}
+	    }
+	    statement.addBatch();
+	    ++numRows;
+	    if(++numPending == BATCH_SIZE){
+		flush();
+	    }
+	}
+
+	void flush() throws SQLException{
+	    if(numPending > 0){
+		statement.executeBatch();
+		numPending = 0;
+	    }
+	}
+
+	void close() throws SQLException{
+	    if(!closed){
+		closed = true;
+		try{
+		    flush();
+		}finally{
+		    statement.close();
+		}
+	    }
+	}
+    }
+
+}//
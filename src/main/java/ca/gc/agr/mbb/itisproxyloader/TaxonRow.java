@@ -0,0 +1,57 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* TaxonRow: the columns of one taxonomic_units row that ItisLoader uses,
+   so that a row can be kept after its ResultSet has moved on (tree order loading).
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+public class TaxonRow
+{
+    String tsn;
+    String parentTsn;
+    String kingdomId;
+    String rankId;
+    String nameUsage;
+    String unacceptReason;
+    String currencyRating;
+    String completenessRating;
+    String credibilityRating;
+    String completeName;
+    String unitInd1;
+    String unitInd2;
+    String unitInd3;
+    String unitInd4;
+    String unitName1;
+    String unitName2;
+    String unitName3;
+    String unitName4;
+    String taxonAuthorId;
+
+    static final TaxonRow from(final ResultSet rs) throws SQLException{
+	TaxonRow row = new TaxonRow();
+	row.tsn = rs.getString("tsn");
+	row.parentTsn = rs.getString("parent_tsn");
+	row.kingdomId = rs.getString("kingdom_id");
+	row.rankId = rs.getString("rank_id");
+	row.nameUsage = rs.getString("name_usage");
+	row.unacceptReason = rs.getString("unaccept_reason");
+	row.currencyRating = rs.getString("currency_rating");
+	row.completenessRating = rs.getString("completeness_rtng");
+	row.credibilityRating = rs.getString("credibility_rtng");
+	row.completeName = rs.getString("complete_name");
+	row.unitInd1 = rs.getString("unit_ind1");
+	row.unitInd2 = rs.getString("unit_ind2");
+	row.unitInd3 = rs.getString("unit_ind3");
+	row.unitInd4 = rs.getString("unit_ind4");
+	row.unitName1 = rs.getString("unit_name1");
+	row.unitName2 = rs.getString("unit_name2");
+	row.unitName3 = rs.getString("unit_name3");
+	row.unitName4 = rs.getString("unit_name4");
+	row.taxonAuthorId = rs.getString("taxon_author_id");
+	return row;
+    }
+
+}//
@@ -0,0 +1,209 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* TsnBitmap: compressed bitmap of (non-negative) int tsns, in the style of a RoaringBitmap.
+   Values are split on their high 16 bits into containers: a container holding
+   up to ARRAY_MAX values is a sorted char[], larger ones are a 2^16 bit bitset.
+ */
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+public class TsnBitmap
+{
+    static final int ARRAY_MAX = 4096;
+    static final int BITSET_WORDS = 1024;
+
+    private char[] keys = new char[8];
+    // each container is either a char[] (array container) or a long[] (bitset container)
+    private Object[] containers = new Object[8];
+    private int[] cardinalities = new int[8];
+    private int numContainers = 0;
+
+    public final boolean add(final int tsn){
+	if(tsn < 0){
+	    throw new IllegalArgumentException("tsn must be >= 0: " + tsn);
+	}
+	char key = (char)(tsn >>> 16);
+	char low = (char)(tsn & 0xffff);
+	int i = findKey(key);
+	if(i < 0){
+	    i = -i - 1;
+	    insertContainer(i, key);
+	}
+	Object c = containers[i];
+	if(c instanceof long[]){
+	    long[] bits = (long[])c;
+	    long mask = 1l << low;
+	    if((bits[low >>> 6] & mask) != 0){
+		return false;
+	    }
+	    bits[low >>> 6] |= mask;
+	    ++cardinalities[i];
+	    return true;
+	}
+
+	char[] values = (char[])c;
+	int n = cardinalities[i];
+	int pos = Arrays.binarySearch(values, 0, n, low);
+	if(pos >= 0){
+	    return false;
+	}
+	pos = -pos - 1;
+	if(n == ARRAY_MAX){
+	    long[] bits = toBitset(values, n);
+	    bits[low >>> 6] |= 1l << low;
+	    containers[i] = bits;
+	}else{
+	    if(n == values.length){
+		values = Arrays.copyOf(values, Math.min(ARRAY_MAX, n * 2));
+		containers[i] = values;
+	    }
+	    System.arraycopy(values, pos, values, pos + 1, n - pos);
+	    values[pos] = low;
+	}
+	++cardinalities[i];
+	return true;
+    }
+
+    public final boolean contains(final int tsn){
+	if(tsn < 0){
+	    return false;
+	}
+	int i = findKey((char)(tsn >>> 16));
+	if(i < 0){
+	    return false;
+	}
+	char low = (char)(tsn & 0xffff);
+	Object c = containers[i];
+	if(c instanceof long[]){
+	    return (((long[])c)[low >>> 6] & (1l << low)) != 0;
+	}
+	return Arrays.binarySearch((char[])c, 0, cardinalities[i], low) >= 0;
+    }
+
+    public final long cardinality(){
+	long n = 0l;
+	for(int i=0; i<numContainers; i++){
+	    n += cardinalities[i];
+	}
+	return n;
+    }
+
+    // All the tsns, in increasing order
+    public final int[] toArray(){
+	int[] tsns = new int[(int)cardinality()];
+	int n = 0;
+	for(int i=0; i<numContainers; i++){
+	    int high = keys[i] << 16;
+	    Object c = containers[i];
+	    if(c instanceof long[]){
+		long[] bits = (long[])c;
+		for(int w=0; w<bits.length; w++){
+		    long word = bits[w];
+		    while(word != 0l){
+			tsns[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+			word &= word - 1;
+		    }
+		}
+	    }else{
+		char[] values = (char[])c;
+		for(int j=0; j<cardinalities[i]; j++){
+		    tsns[n++] = high | values[j];
+		}
+	    }
+	}
+	return tsns;
+    }
+
+    // Approximate size in bytes of the serialized bitmap
+    public final long sizeInBytes(){
+	long size = 4;
+	for(int i=0; i<numContainers; i++){
+	    size += 7 + (containers[i] instanceof long[]? BITSET_WORDS * 8: cardinalities[i] * 2);
+	}
+	return size;
+    }
+
+    public final void write(final DataOutputStream dos) throws IOException{
+	dos.writeInt(numContainers);
+	for(int i=0; i<numContainers; i++){
+	    dos.writeChar(keys[i]);
+	    dos.writeInt(cardinalities[i]);
+	    Object c = containers[i];
+	    if(c instanceof long[]){
+		dos.writeBoolean(true);
+		for(long word: (long[])c){
+		    dos.writeLong(word);
+		}
+	    }else{
+		dos.writeBoolean(false);
+		char[] values = (char[])c;
+		for(int j=0; j<cardinalities[i]; j++){
+		    dos.writeChar(values[j]);
+		}
+	    }
+	}
+    }
+
+    public static final TsnBitmap read(final DataInputStream dis) throws IOException{
+	TsnBitmap bitmap = new TsnBitmap();
+	int n = dis.readInt();
+	bitmap.keys = new char[Math.max(1, n)];
+	bitmap.containers = new Object[Math.max(1, n)];
+	bitmap.cardinalities = new int[Math.max(1, n)];
+	for(int i=0; i<n; i++){
+	    bitmap.keys[i] = dis.readChar();
+	    bitmap.cardinalities[i] = dis.readInt();
+	    if(dis.readBoolean()){
+		long[] bits = new long[BITSET_WORDS];
+		for(int j=0; j<bits.length; j++){
+		    bits[j] = dis.readLong();
+		}
+		bitmap.containers[i] = bits;
+	    }else{
+		char[] values = new char[bitmap.cardinalities[i]];
+		for(int j=0; j<values.length; j++){
+		    values[j] = dis.readChar();
+		}
+		bitmap.containers[i] = values;
+	    }
+	}
+	bitmap.numContainers = n;
+	return bitmap;
+    }
+
+    private final int findKey(final char key){
+	// Fast path for the common case of increasing tsns
+	if(numContainers > 0 && keys[numContainers - 1] == key){
+	    return numContainers - 1;
+	}
+	return Arrays.binarySearch(keys, 0, numContainers, key);
+    }
+
+    private final void insertContainer(final int i, final char key){
+	if(numContainers == keys.length){
+	    keys = Arrays.copyOf(keys, numContainers * 2);
+	    containers = Arrays.copyOf(containers, numContainers * 2);
+	    cardinalities = Arrays.copyOf(cardinalities, numContainers * 2);
+	}
+	System.arraycopy(keys, i, keys, i + 1, numContainers - i);
+	System.arraycopy(containers, i, containers, i + 1, numContainers - i);
+	System.arraycopy(cardinalities, i, cardinalities, i + 1, numContainers - i);
+	keys[i] = key;
+	containers[i] = new char[4];
+	cardinalities[i] = 0;
+	++numContainers;
+    }
+
+    static final long[] toBitset(final char[] values, final int n){
+	long[] bits = new long[BITSET_WORDS];
+	for(int j=0; j<n; j++){
+	    bits[values[j] >>> 6] |= 1l << values[j];
+	}
+	return bits;
+    }
+
+}//
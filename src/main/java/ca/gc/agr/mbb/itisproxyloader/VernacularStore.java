@@ -0,0 +1,242 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+/* VernacularStore: all vernaculars (common names) in one shared store, built in one
+   scan of the vernaculars table ordered by tsn.
+
+   Language codes and names are deduplicated into a string table; each tsn with
+   vernaculars has a posting list of (language id, name id) pairs
+   (postings of keys[i] are postings[offsets[i]] .. postings[offsets[i+1]-1]).
+
+   The language -> names maps handed to the hierarchy ranks are built once per tsn and
+   shared by every record that has that tsn in its hierarchy: the vernaculars of high
+   level taxa ("plants", "insects", ...) are no longer re-queried and re-allocated for
+   each of their descendants. The maps and lists are shared, so they are unmodifiable.
+
+   ItisLoader writes it to the cache directory, where readers can load it. It does not make
+   the BDB records smaller: the stored ItisRecord format belongs to itisproxy, and each
+   record (and each TaxRank of its hierarchy) still serializes its own copy of the names.
+
+   File layout (big endian):
+   --
+   MAGIC, VERSION
+   numStrings, strings[numStrings] (modified UTF-8, as DataOutput.writeUTF)
+   numKeys, numPostings, keys[numKeys], offsets[numKeys+1], postings[2*numPostings]
+   --
+   A null language or name is stored as string id -1.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+public class VernacularStore
+{
+    public static final String FILE_NAME = "vernaculars.dict";
+    static final int MAGIC = 0x4954564e; // "ITVN"
+    static final int VERSION = 1;
+
+    static final Map<String, List<String>> NONE = Collections.emptyMap();
+
+    private final String[] strings;
+    private final int[] keys;
+    private final int[] offsets;
+    private final int[] postings;
+    // Built on first use, shared afterwards
+    private final AtomicReferenceArray<Map<String, List<String>>> maps;
+
+    VernacularStore(final String[] strings, final int[] keys, final int[] offsets, final int[] postings){
+	this.strings = strings;
+	this.keys = keys;
+	this.offsets = offsets;
+	this.postings = postings;
+	this.maps = new AtomicReferenceArray<Map<String, List<String>>>(keys.length);
+    }
+
+    // language -> vernacular names of the tsn, shared and unmodifiable; empty if it has none
+    public final Map<String, List<String>> commonNames(final int tsn){
+	int k = Arrays.binarySearch(keys, tsn);
+	if(k < 0){
+	    return NONE;
+	}
+	Map<String, List<String>> cm = maps.get(k);
+	if(cm != null){
+	    return cm;
+	}
+	Map<String, List<String>> built = new HashMap<String, List<String>>();
+	for(int p=offsets[k]; p<offsets[k+1]; p++){
+	    String lang = string(postings[2*p]);
+	    List<String> verns = built.get(lang);
+	    if(verns == null){
+		verns = new ArrayList<String>(2);
+		built.put(lang, verns);
+	    }
+	    verns.add(string(postings[2*p + 1]));
+	}
+	for(Map.Entry<String, List<String>> entry: built.entrySet()){
+	    entry.setValue(Collections.unmodifiableList(entry.getValue()));
+	}
+	cm = Collections.unmodifiableMap(built);
+	// Another thread may have built it meanwhile: keep whichever got there first
+	if(!maps.compareAndSet(k, null, cm)){
+	    cm = maps.get(k);
+	}
+	return cm;
+    }
+
+    // (language, name) pairs of the tsn, in table order; each pair is {language, name}
+    public final List<String[]> vernaculars(final int tsn){
+	int k = Arrays.binarySearch(keys, tsn);
+	if(k < 0){
+	    return Collections.emptyList();
+	}
+	List<String[]> pairs = new ArrayList<String[]>(offsets[k+1] - offsets[k]);
+	for(int p=offsets[k]; p<offsets[k+1]; p++){
+	    pairs.add(new String[]{string(postings[2*p]), string(postings[2*p + 1])});
+	}
+	return pairs;
+    }
+
+    public final int numTsns(){
+	return keys.length;
+    }
+
+    public final int numVernaculars(){
+	return offsets[keys.length];
+    }
+
+    public final int numStrings(){
+	return strings.length;
+    }
+
+    private final String string(final int id){
+	return id < 0? null: strings[id];
+    }
+
+    public static final VernacularStore build(final Connection connection) throws SQLException{
+	Map<String, Integer> ids = new HashMap<String, Integer>();
+	List<String> strings = new ArrayList<String>();
+	int[] keys = new int[1024];
+	int[] offsets = new int[1025];
+	int[] postings = new int[2048];
+	int numKeys = 0;
+	int n = 0;
+
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery("select tsn, language, vernacular_name from vernaculars order by tsn, vern_id");
+	try{
+	    while(rs.next()){
+		int tsn = rs.getInt(1);
+		if(numKeys == 0 || keys[numKeys-1] != tsn){
+		    if(numKeys == keys.length){
+			keys = Arrays.copyOf(keys, numKeys * 2);
+			offsets = Arrays.copyOf(offsets, numKeys * 2 + 1);
+		    }
+		    keys[numKeys] = tsn;
+		    offsets[numKeys] = n;
+		    ++numKeys;
+		}
+		if(2*n == postings.length){
+		    postings = Arrays.copyOf(postings, postings.length * 2);
+		}
+		postings[2*n] = intern(rs.getString(2), ids, strings);
+		postings[2*n + 1] = intern(rs.getString(3), ids, strings);
+		++n;
+	    }
+	}finally{
+	    ItisLoader.closeAll(statement, rs);
+	}
+	offsets[numKeys] = n;
+	return new VernacularStore(strings.toArray(new String[strings.size()]),
+				   Arrays.copyOf(keys, numKeys),
+				   Arrays.copyOf(offsets, numKeys + 1),
+				   Arrays.copyOf(postings, 2*n));
+    }
+
+    static final int intern(final String s, final Map<String, Integer> ids, final List<String> strings){
+	if(s == null){
+	    return -1;
+	}
+	Integer id = ids.get(s);
+	if(id == null){
+	    id = strings.size();
+	    ids.put(s, id);
+	    strings.add(s);
+	}
+	return id;
+    }
+
+    public final void write(final File dir) throws IOException{
+	File tmp = new File(dir, FILE_NAME + ".tmp");
+	DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try{
+	    dos.writeInt(MAGIC);
+	    dos.writeInt(VERSION);
+	    dos.writeInt(strings.length);
+	    for(String s: strings){
+		dos.writeUTF(s);
+	    }
+	    dos.writeInt(keys.length);
+	    dos.writeInt(numVernaculars());
+	    for(int[] a: new int[][]{keys, offsets, postings}){
+		for(int i=0; i<a.length; i++){
+		    dos.writeInt(a[i]);
+		}
+	    }
+	}finally{
+	    dos.close();
+	}
+	CacheVersions.replace(tmp, new File(dir, FILE_NAME));
+    }
+
+    // Loads the store in the cache directory; returns null if there is none
+    public static final VernacularStore open(final File dir) throws IOException{
+	File f = new File(dir, FILE_NAME);
+	if(!f.exists()){
+	    return null;
+	}
+	DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	try{
+	    if(dis.readInt() != MAGIC || dis.readInt() != VERSION){
+		throw new IOException("Not a vernacular store, or unsupported version: " + f);
+	    }
+	    String[] strings = new String[dis.readInt()];
+	    for(int i=0; i<strings.length; i++){
+		strings[i] = dis.readUTF();
+	    }
+	    int numKeys = dis.readInt();
+	    int numPostings = dis.readInt();
+	    int[] keys = readInts(dis, numKeys);
+	    int[] offsets = readInts(dis, numKeys + 1);
+	    int[] postings = readInts(dis, 2 * numPostings);
+	    return new VernacularStore(strings, keys, offsets, postings);
+	}finally{
+	    dis.close();
+	}
+    }
+
+    static final int[] readInts(final DataInputStream dis, final int n) throws IOException{
+	int[] a = new int[n];
+	for(int i=0; i<n; i++){
+	    a[i] = dis.readInt();
+	}
+	return a;
+    }
+
+}//
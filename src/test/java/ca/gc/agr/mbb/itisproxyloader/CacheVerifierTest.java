@@ -0,0 +1,98 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+@RunWith(JUnit4.class)
+public class CacheVerifierTest{
+
+    static class Name{
+	String value;
+	Name(final String value){
+	    this.value = value;
+	}
+    }
+
+    static class Record{
+	String tsn = "180092";
+	Name name = new Name("Homo sapiens");
+	List<Name> synonyms = new ArrayList<Name>();
+	Map<String, List<String>> commonNames = new LinkedHashMap<String, List<String>>();
+	transient long cached = System.nanoTime();
+    }
+
+    static final Record record(final boolean reversed){
+	Record r = new Record();
+	r.synonyms.add(new Name("a"));
+	r.synonyms.add(new Name("b"));
+	List<String> english = new ArrayList<String>();
+	english.add("human");
+	List<String> french = new ArrayList<String>();
+	french.add("homme");
+	// Same content, different iteration order: the serialized bytes differ
+	if(reversed){
+	    r.commonNames.put("French", french);
+	    r.commonNames.put("English", english);
+	}else{
+	    r.commonNames.put("English", english);
+	    r.commonNames.put("French", french);
+	}
+	return r;
+    }
+
+    @Test
+    public void sameDecodedFieldsAreNoDifference() throws IllegalAccessException{
+	Assert.assertNull(CacheVerifier.difference(record(false), record(true), "record", 0));
+    }
+
+    @Test
+    public void firstDifferingFieldIsReported() throws IllegalAccessException{
+	Record a = record(false);
+	Record b = record(false);
+	b.synonyms.get(1).value = "c";
+	Assert.assertEquals("record.synonyms[1].value", CacheVerifier.difference(a, b, "record", 0));
+
+	b = record(false);
+	b.commonNames.get("French").add("humain");
+	Assert.assertEquals("record.commonNames[French].size", CacheVerifier.difference(a, b, "record", 0));
+
+	b = record(false);
+	b.name = null;
+	Assert.assertEquals("record.name", CacheVerifier.difference(a, b, "record", 0));
+
+	Map<String, String> ma = new HashMap<String, String>();
+	ma.put("k", "v");
+	Map<String, String> mb = new HashMap<String, String>();
+	mb.put("j", "v");
+	Assert.assertEquals("m[k]", CacheVerifier.difference(ma, mb, "m", 0));
+    }
+
+    @Test
+    public void filterOptionsAreTheLoaderOnes(){
+	LoadFilter filter = new LoadFilter();
+	Assert.assertTrue(ItisLoader.parseFilterOption(filter, ItisLoader.OPTION_KINGDOMS, "3,5"));
+	Assert.assertTrue(ItisLoader.parseFilterOption(filter, ItisLoader.OPTION_MIN_RANK, "100"));
+	Assert.assertTrue(ItisLoader.parseFilterOption(filter, ItisLoader.OPTION_MAX_RANK, "220"));
+	Assert.assertTrue(ItisLoader.parseFilterOption(filter, ItisLoader.OPTION_ROOTS, "202422"));
+	Assert.assertTrue(ItisLoader.parseFilterOption(filter, ItisLoader.OPTION_ACCEPTED_ONLY, null));
+	Assert.assertArrayEquals(new int[]{3, 5}, filter.kingdomIds);
+	Assert.assertEquals(100, filter.minRankId);
+	Assert.assertEquals(220, filter.maxRankId);
+	Assert.assertArrayEquals(new int[]{202422}, filter.rootTsns);
+	Assert.assertTrue(filter.acceptedOnly);
+
+	Assert.assertFalse(ItisLoader.parseFilterOption(filter, ItisLoader.OPTION_MIN_RANK, "x"));
+	Assert.assertFalse(ItisLoader.parseFilterOption(filter, ItisLoader.OPTION_ACCEPTED_ONLY, "yes"));
+	Assert.assertFalse(ItisLoader.parseFilterOption(filter, ItisLoader.OPTION_VERIFY, null));
+    }
+
+}
@@ -0,0 +1,106 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+
+@RunWith(JUnit4.class)
+public class CacheVersionsTest{
+
+    File root;
+
+    @Before
+    public void makeRoot() throws IOException{
+	root = File.createTempFile("cache-versions", "");
+	root.delete();
+	root.mkdir();
+    }
+
+    @After
+    public void deleteRoot() throws IOException{
+	CacheVersions.deleteRecursively(root);
+    }
+
+    @Test
+    public void pruneKeepsNewestPublishedAndInUse() throws IOException{
+	File[] dirs = new File[5];
+	for(int i=0; i<dirs.length; i++){
+	    dirs[i] = CacheVersions.newVersionDir(root, "v" + i);
+	    CacheVersions.writeManifest(dirs[i], new HashMap<String, String>());
+	    // listVersions orders by build time
+	    new File(dirs[i], CacheVersions.MANIFEST_FILE).setLastModified(1000000000000l + i * 1000l);
+	}
+	CacheVersions.publish(root, "v0");
+	FileLock inUse = CacheVersions.lockInUse(dirs[1]);
+	try{
+	    List<String> deleted = CacheVersions.prune(root, 2);
+	    Assert.assertEquals(Arrays.asList("v2"), deleted);
+	}finally{
+	    inUse.channel().close();
+	}
+	Assert.assertEquals(Arrays.asList("v0", "v1", "v3", "v4"), CacheVersions.listVersions(root));
+
+	// No longer in use
+	Assert.assertEquals(Arrays.asList("v1"), CacheVersions.prune(root, 2));
+	Assert.assertEquals("v0", CacheVersions.currentVersion(root));
+    }
+
+    @Test
+    public void failedBuildsDoNotCountAndAreDeleted() throws IOException{
+	File[] dirs = new File[2];
+	for(int i=0; i<dirs.length; i++){
+	    dirs[i] = CacheVersions.newVersionDir(root, "v" + i);
+	    CacheVersions.writeManifest(dirs[i], new HashMap<String, String>());
+	    new File(dirs[i], CacheVersions.MANIFEST_FILE).setLastModified(1000000000000l + i * 1000l);
+	}
+	CacheVersions.publish(root, "v1");
+	// Newer than the complete versions, no manifest: two failed builds and one still being built
+	File failed = CacheVersions.newVersionDir(root, "v1");
+	File failedAgain = CacheVersions.newVersionDir(root, "v1");
+	File building = CacheVersions.newVersionDir(root, "v2");
+	Assert.assertFalse(CacheVersions.isComplete(failed));
+	FileLock buildLock = CacheVersions.lockInUse(building);
+	try{
+	    List<String> deleted = CacheVersions.prune(root, 2);
+	    Collections.sort(deleted);
+	    Assert.assertEquals(Arrays.asList(failed.getName(), failedAgain.getName()), deleted);
+	}finally{
+	    buildLock.channel().close();
+	}
+	// Both complete versions are still there for a rollback
+	Assert.assertTrue(CacheVersions.listVersions(root).containsAll(Arrays.asList("v0", "v1", "v2")));
+	Assert.assertEquals(3, CacheVersions.listVersions(root).size());
+    }
+
+    @Test
+    public void replaceOverwritesTheTarget() throws IOException{
+	File f = new File(root, "index");
+	File tmp = new File(root, "index.tmp");
+	Files.write(tmp.toPath(), "first".getBytes("UTF-8"));
+	CacheVersions.replace(tmp, f);
+	Files.write(tmp.toPath(), "second".getBytes("UTF-8"));
+	CacheVersions.replace(tmp, f);
+	Assert.assertFalse(tmp.exists());
+	Assert.assertEquals("second", new String(Files.readAllBytes(f.toPath()), "UTF-8"));
+    }
+
+    @Test
+    public void nothingPublished() throws IOException{
+	CacheVersions.newVersionDir(root, "v0");
+	Assert.assertNull(CacheVersions.currentDir(root));
+    }
+
+}
@@ -0,0 +1,125 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import ca.gc.agr.mbb.itisproxy.entities.FullRecord;
+import ca.gc.agr.mbb.itisproxy.entities.GeoDivision;
+import ca.gc.agr.mbb.itisproxy.entities.GeographicDivisionsList;
+import ca.gc.agr.mbb.itisproxy.entities.JurisdictionalOrigin;
+import ca.gc.agr.mbb.itisproxy.entities.JurisdictionalOriginsList;
+import ca.gc.agr.mbb.itisproxy.entities.ScientificName;
+import ca.gc.agr.mbb.itisproxy.entities.Usage;
+
+
+@RunWith(JUnit4.class)
+public class ColumnarSnapshotTest{
+
+    static final int NUM_ROWS = 25;
+
+    // Every 5th record has no parent, every 7th a parent that is not a number, every 3rd no geographic division
+    static final FullRecord record(final int i){
+	FullRecord rec = new FullRecord();
+	rec.tsn = Integer.toString(1000 + i);
+	rec.parentTsn.parentTsn = i % 5 == 0? null: (i % 7 == 0? "n/a": Integer.toString(-i));
+	rec.taxRank.rankId = Integer.toString(220);
+	rec.taxRank.rankName = "Species";
+	rec.kingdom.kingdomId = Integer.toString(1 + i % 3);
+	rec.scientificName = new ScientificName();
+	rec.scientificName.combinedName = "Genus species" + i;
+	rec.usage = new Usage();
+	rec.usage.taxonUsageRating = i % 2 == 0? "valid": "not accepted";
+	rec.jurisdictionalOriginList = new JurisdictionalOriginsList();
+	rec.jurisdictionalOriginList.jurisdictionalOrigins = new ArrayList<JurisdictionalOrigin>();
+	for(int j=0; j<i % 4; j++){
+	    JurisdictionalOrigin jo = new JurisdictionalOrigin();
+	    jo.jurisdictionValue = "Canada";
+	    jo.origin = "Native" + j;
+	    rec.jurisdictionalOriginList.jurisdictionalOrigins.add(jo);
+	}
+	if(i % 3 != 0){
+	    rec.geographicDivisionList = new GeographicDivisionsList();
+	    rec.geographicDivisionList.geoDivisions = new ArrayList<GeoDivision>();
+	    GeoDivision gd = new GeoDivision();
+	    gd.geographicValue = "North America";
+	    rec.geographicDivisionList.geoDivisions.add(gd);
+	}
+	return rec;
+    }
+
+    @Test
+    public void readsWhatWasWritten() throws IOException{
+	File f = File.createTempFile("snapshot", ".col");
+	try{
+	    // Row groups of 10: the last one is partial
+	    ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(f, 10);
+	    for(int i=0; i<NUM_ROWS; i++){
+		writer.add(record(i));
+	    }
+	    writer.close();
+	    Assert.assertEquals(NUM_ROWS, writer.getNumRows());
+
+	    ColumnarSnapshotReader reader = new ColumnarSnapshotReader(f);
+	    try{
+		Assert.assertEquals(NUM_ROWS, reader.getNumRows());
+		Assert.assertEquals(3, reader.getNumRowGroups());
+		int[] tsns = reader.readIntColumn(ColumnarSnapshotWriter.TSN);
+		int[] parents = reader.readIntColumn(ColumnarSnapshotWriter.PARENT_TSN);
+		boolean[] parentNulls = reader.readIntNulls(ColumnarSnapshotWriter.PARENT_TSN);
+		boolean[] tsnNulls = reader.readIntNulls(ColumnarSnapshotWriter.TSN);
+		String[] names = reader.readStringColumn(ColumnarSnapshotWriter.COMPLETE_NAME);
+		String[] unitNames = reader.readStringColumn(ColumnarSnapshotWriter.UNIT_NAME1);
+		String[][] jurisdictions = reader.readListColumn(ColumnarSnapshotWriter.JURISDICTIONS);
+		String[][] geoDivisions = reader.readListColumn(ColumnarSnapshotWriter.GEO_DIVISIONS);
+
+		for(int i=0; i<NUM_ROWS; i++){
+		    FullRecord rec = record(i);
+		    Assert.assertEquals(1000 + i, tsns[i]);
+		    Assert.assertFalse(tsnNulls[i]);
+		    boolean nullParent = i % 5 == 0 || i % 7 == 0;
+		    Assert.assertEquals("row " + i, nullParent, parentNulls[i]);
+		    if(!nullParent){
+			// -1 and other real negative values are not nulls
+			Assert.assertEquals(-i, parents[i]);
+		    }
+		    Assert.assertEquals(rec.scientificName.combinedName, names[i]);
+		    Assert.assertNull(unitNames[i]);
+		    Assert.assertEquals(i % 4, jurisdictions[i].length);
+		    for(int j=0; j<jurisdictions[i].length; j++){
+			Assert.assertEquals("Canada" + ColumnarSnapshotWriter.JURISDICTION_SEPARATOR + "Native" + j, jurisdictions[i][j]);
+		    }
+		    Assert.assertEquals(i % 3 == 0? 0: 1, geoDivisions[i].length);
+		}
+	    }finally{
+		reader.close();
+	    }
+	}finally{
+	    f.delete();
+	}
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void wrongColumnType() throws IOException{
+	File f = File.createTempFile("snapshot", ".col");
+	try{
+	    ColumnarSnapshotWriter writer = new ColumnarSnapshotWriter(f);
+	    writer.add(record(1));
+	    writer.close();
+	    ColumnarSnapshotReader reader = new ColumnarSnapshotReader(f);
+	    try{
+		reader.readIntColumn(ColumnarSnapshotWriter.COMPLETE_NAME);
+	    }finally{
+		reader.close();
+	    }
+	}finally{
+	    f.delete();
+	}
+    }
+
+}
@@ -0,0 +1,165 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.gc.agr.itis.itismodel.ItisRecord;
+
+
+@RunWith(JUnit4.class)
+public class ItisCacheServerTest{
+
+    // In the existence index; FAILING fails to read, as a BDB error would
+    static final String PRESENT = "12";
+    static final String FAILING = "13";
+    // Not in the existence index
+    static final String ABSENT = "99";
+
+    // Serves records from a stub instead of BDB: none is found
+    static final class StubServer extends ItisCacheServer{
+	final AtomicInteger numReads = new AtomicInteger();
+
+	StubServer(final File dir, final ExistenceIndex existenceIndex){
+	    super(dir, new Cache(dir, null, existenceIndex, null));
+	}
+
+	ItisRecord read(final Cache c, final String tsn) throws Exception{
+	    numReads.incrementAndGet();
+	    if(tsn.equals(FAILING)){
+		throw new IOException("Simulated cache failure");
+	    }
+	    return null;
+	}
+    }
+
+    StubServer server;
+
+    @Before
+    public void startServer() throws IOException{
+	ExistenceIndex existenceIndex = new ExistenceIndex();
+	existenceIndex.add(PRESENT, ExistenceIndex.USAGE_ACCEPTED);
+	existenceIndex.add(FAILING, ExistenceIndex.USAGE_ACCEPTED);
+	server = new StubServer(new File(System.getProperty("java.io.tmpdir")), existenceIndex);
+	server.start(0);
+    }
+
+    @After
+    public void stopServer(){
+	server.stop();
+    }
+
+    static final class Response{
+	int status;
+	String body;
+    }
+
+    final Response request(final String method, final String path, final String body) throws IOException{
+	HttpURLConnection connection = (HttpURLConnection)new URL("http://localhost:" + server.getPort() + path).openConnection();
+	connection.setRequestMethod(method);
+	if(body != null){
+	    connection.setDoOutput(true);
+	    OutputStream os = connection.getOutputStream();
+	    os.write(body.getBytes("UTF-8"));
+	    os.close();
+	}
+	Response response = new Response();
+	response.status = connection.getResponseCode();
+	InputStream is = response.status < 400? connection.getInputStream(): connection.getErrorStream();
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	try{
+	    byte[] buf = new byte[8192];
+	    int n;
+	    while((n = is.read(buf)) > 0){
+		bytes.write(buf, 0, n);
+	    }
+	}finally{
+	    is.close();
+	}
+	response.body = bytes.toString("UTF-8");
+	connection.disconnect();
+	return response;
+    }
+
+    final Response get(final String path) throws IOException{
+	return request("GET", path, null);
+    }
+
+    @Test
+    public void badTsnIs400AndMissingTsnIs404() throws IOException{
+	Assert.assertEquals(400, get("/tsn/abc").status);
+	Assert.assertEquals(400, get("/hierarchy/-5").status);
+	Assert.assertEquals(404, get("/tsn/" + PRESENT).status);
+	Assert.assertEquals(1, server.numReads.get());
+	// Not in the existence index: answered without reading the cache
+	Response response = get("/hierarchy/" + ABSENT);
+	Assert.assertEquals(404, response.status);
+	Assert.assertEquals("{\"error\":\"Not found\"}", response.body);
+	Assert.assertEquals(1, server.numReads.get());
+    }
+
+    @Test
+    public void cacheFailureIs500() throws IOException{
+	Assert.assertEquals(500, get("/tsn/" + FAILING).status);
+	Assert.assertEquals(500, get("/hierarchy/" + FAILING).status);
+	// The server still answers after failures
+	Assert.assertEquals(404, get("/tsn/" + PRESENT).status);
+    }
+
+    @Test
+    public void batchStreamsEveryTsn() throws IOException{
+	String expected = "[{\"tsn\":\"" + PRESENT + "\",\"record\":null},{\"tsn\":\"" + ABSENT + "\",\"record\":null}]";
+	Response response = get("/batch?tsn=" + PRESENT + "," + ABSENT);
+	Assert.assertEquals(200, response.status);
+	Assert.assertEquals(expected, response.body);
+	response = request("POST", "/batch", PRESENT + "\n" + ABSENT + "\n");
+	Assert.assertEquals(200, response.status);
+	Assert.assertEquals(expected, response.body);
+
+	Assert.assertEquals(400, get("/batch?tsn=" + PRESENT + ",x").status);
+	StringBuilder tooMany = new StringBuilder();
+	for(int i=0; i<=ItisCacheServer.MAX_BATCH_SIZE; i++){
+	    tooMany.append(i).append(',');
+	}
+	Assert.assertEquals(413, request("POST", "/batch", tooMany.toString()).status);
+    }
+
+    @Test
+    public void batchFailureLeavesTheArrayUnterminated() throws IOException{
+	Response response;
+	try{
+	    response = get("/batch?tsn=" + PRESENT + "," + FAILING + "," + ABSENT);
+	}catch(IOException e){
+	    // The connection may also just be cut
+	    return;
+	}
+	Assert.assertEquals(200, response.status);
+	Assert.assertFalse(response.body, response.body.endsWith("]"));
+	Assert.assertFalse(response.body, response.body.contains(ABSENT));
+    }
+
+    @Test
+    public void statsCountRequestsPerEndpoint() throws IOException{
+	get("/tsn/" + PRESENT);
+	get("/tsn/" + FAILING);
+	get("/batch?tsn=" + PRESENT);
+	Response response = get("/stats");
+	Assert.assertEquals(200, response.status);
+	Assert.assertTrue(response.body, response.body.startsWith("{\"tsn\":{\"count\":2,"));
+	Assert.assertTrue(response.body, response.body.contains("\"hierarchy\":{\"count\":0,"));
+	Assert.assertTrue(response.body, response.body.contains("\"batch\":{\"count\":1,"));
+    }
+
+}
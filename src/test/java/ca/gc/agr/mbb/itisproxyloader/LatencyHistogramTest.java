@@ -0,0 +1,75 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest{
+
+    @Test
+    public void emptyHistogram(){
+	LatencyHistogram histogram = new LatencyHistogram();
+	Assert.assertEquals(0l, histogram.getCount());
+	Assert.assertEquals(0.0, histogram.getMeanMicros(), 0.0);
+	Assert.assertEquals(0l, histogram.getPercentileMicros(99));
+	Assert.assertEquals(0l, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void percentilesAreBucketUpperBounds(){
+	LatencyHistogram histogram = new LatencyHistogram();
+	for(int i=0; i<90; i++){
+	    histogram.record(100000l);
+	}
+	for(int i=0; i<10; i++){
+	    histogram.record(5000000l);
+	}
+	Assert.assertEquals(100l, histogram.getCount());
+	Assert.assertEquals(590.0, histogram.getMeanMicros(), 0.001);
+	Assert.assertEquals(5000l, histogram.getMaxMicros());
+	// 100us is in the (64, 128] bucket, 5000us in (4096, 8192]
+	Assert.assertEquals(128l, histogram.getPercentileMicros(50));
+	Assert.assertEquals(128l, histogram.getPercentileMicros(90));
+	Assert.assertEquals(8192l, histogram.getPercentileMicros(99));
+	Assert.assertEquals("{\"count\":100,\"meanMicros\":590.0,\"p50Micros\":128,\"p90Micros\":128,\"p99Micros\":8192,\"maxMicros\":5000}",
+			    histogram.toJson());
+    }
+
+    @Test
+    public void subMicrosecondAndHugeLatencies(){
+	LatencyHistogram histogram = new LatencyHistogram();
+	histogram.record(500l);
+	Assert.assertEquals(0l, histogram.getPercentileMicros(100));
+	// Past the last bucket: counted in it
+	histogram.record(Long.MAX_VALUE / 2);
+	Assert.assertEquals(1l << (LatencyHistogram.NUM_BUCKETS - 1), histogram.getPercentileMicros(100));
+	Assert.assertEquals(Long.MAX_VALUE / 2 / 1000l, histogram.getMaxMicros());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException{
+	final LatencyHistogram histogram = new LatencyHistogram();
+	Thread[] threads = new Thread[4];
+	for(int i=0; i<threads.length; i++){
+	    final long nanos = (i + 1) * 1000000l;
+	    threads[i] = new Thread(){
+		    public void run(){
+			for(int j=0; j<10000; j++){
+			    histogram.record(nanos);
+			}
+		    }
+		};
+	    threads[i].start();
+	}
+	for(Thread thread: threads){
+	    thread.join();
+	}
+	Assert.assertEquals(40000l, histogram.getCount());
+	Assert.assertEquals(4000l, histogram.getMaxMicros());
+	Assert.assertEquals(2500.0, histogram.getMeanMicros(), 0.001);
+    }
+
+}
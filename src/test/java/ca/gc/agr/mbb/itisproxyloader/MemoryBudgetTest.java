@@ -0,0 +1,63 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+
+@RunWith(JUnit4.class)
+public class MemoryBudgetTest{
+
+    static final long MB = 1024l * 1024l;
+
+    @Test
+    public void sizesFromTheBudget(){
+	MemoryBudget budget = new MemoryBudget(64l * MB);
+	Assert.assertEquals(64l * MB, budget.getBudgetBytes());
+	Assert.assertEquals(64l * MB / MemoryBudget.BYTES_PER_ROW, budget.initialChunkSize());
+	Assert.assertEquals((long)(64l * MB * MemoryBudget.DOCUMENT_CACHE_FRACTION) / MemoryBudget.BYTES_PER_DOCUMENT, budget.documentCacheSize());
+	Assert.assertEquals((long)(64l * MB * MemoryBudget.SNAPSHOT_FRACTION) / MemoryBudget.BYTES_PER_SNAPSHOT_ROW, budget.snapshotRowGroupSize());
+    }
+
+    @Test
+    public void smallBudgetIsClamped(){
+	MemoryBudget budget = new MemoryBudget(MB);
+	Assert.assertEquals(MemoryBudget.MIN_CHUNK_SIZE, budget.initialChunkSize());
+	Assert.assertEquals(MemoryBudget.MIN_DOCUMENT_CACHE_SIZE, budget.documentCacheSize());
+	Assert.assertEquals(MemoryBudget.MIN_ROW_GROUP_SIZE, budget.snapshotRowGroupSize());
+    }
+
+    @Test
+    public void budgetIsAtMostTheMaxHeap(){
+	long maxHeap = Runtime.getRuntime().maxMemory();
+	Assert.assertEquals(maxHeap, new MemoryBudget(maxHeap + MB).getBudgetBytes());
+	Assert.assertEquals((long)(maxHeap * MemoryBudget.DEFAULT_HEAP_FRACTION), new MemoryBudget().getBudgetBytes());
+    }
+
+    @Test
+    public void chunksShrinkOncePerReadingAndGrowWithHeadroom(){
+	// Over the high water mark: halved on a fresh reading, kept on one already acted on
+	Assert.assertEquals(2000, MemoryBudget.nextChunkSize(4000, 0.95, true));
+	Assert.assertEquals(4000, MemoryBudget.nextChunkSize(4000, 0.95, false));
+	Assert.assertEquals(MemoryBudget.MIN_CHUNK_SIZE, MemoryBudget.nextChunkSize(MemoryBudget.MIN_CHUNK_SIZE + 1, 0.95, true));
+	// Between the marks: unchanged
+	Assert.assertEquals(4000, MemoryBudget.nextChunkSize(4000, 0.70, true));
+	// Under the low water mark: grown by a quarter, up to the max
+	Assert.assertEquals(5000, MemoryBudget.nextChunkSize(4000, 0.20, true));
+	Assert.assertEquals(5000, MemoryBudget.nextChunkSize(4000, 0.20, false));
+	Assert.assertEquals(MemoryBudget.MAX_CHUNK_SIZE, MemoryBudget.nextChunkSize(MemoryBudget.MAX_CHUNK_SIZE - 1, 0.20, true));
+	Assert.assertEquals(MemoryBudget.MAX_CHUNK_SIZE, MemoryBudget.nextChunkSize(MemoryBudget.MAX_CHUNK_SIZE, 0.20, true));
+    }
+
+    @Test
+    public void adjustChunkSizeStaysInRange(){
+	MemoryBudget budget = new MemoryBudget(64l * MB);
+	int chunkSize = budget.initialChunkSize();
+	for(int i=0; i<10; i++){
+	    chunkSize = budget.adjustChunkSize(chunkSize);
+	    Assert.assertTrue(chunkSize >= MemoryBudget.MIN_CHUNK_SIZE && chunkSize <= MemoryBudget.MAX_CHUNK_SIZE);
+	}
+    }
+
+}
@@ -0,0 +1,92 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+
+
+@RunWith(JUnit4.class)
+public class RecordHashStoreTest{
+
+    File dir;
+
+    @Before
+    public void makeDir() throws IOException{
+	dir = File.createTempFile("record-hashes", "");
+	dir.delete();
+	dir.mkdir();
+    }
+
+    @After
+    public void deleteDir(){
+	new File(dir, RecordHashStore.FILE_NAME).delete();
+	dir.delete();
+    }
+
+    @Test
+    public void savedHashesAreThePreviousOnesOfTheNextRun() throws IOException{
+	RecordHashStore first = RecordHashStore.load(dir);
+	Assert.assertEquals(0, first.numPrevious());
+	// Many entries, to grow the map
+	for(int tsn=0; tsn<5000; tsn++){
+	    first.put(tsn, 1000l + tsn);
+	}
+	first.put(7, RecordHash.NO_HASH);
+	first.save(dir, false, true);
+
+	RecordHashStore second = RecordHashStore.load(dir);
+	Assert.assertEquals(5000, second.numPrevious());
+	for(int tsn=0; tsn<5000; tsn++){
+	    Assert.assertEquals(1000l + tsn, second.previous(tsn));
+	}
+	Assert.assertEquals(RecordHash.NO_HASH, second.previous(5000));
+
+	// A complete run drops the tsns it did not see; a filtered one keeps them
+	second.put(1, 2l);
+	second.save(dir, true, true);
+	RecordHashStore third = RecordHashStore.load(dir);
+	Assert.assertEquals(5000, third.numPrevious());
+	Assert.assertEquals(2l, third.previous(1));
+	Assert.assertEquals(1002l, third.previous(2));
+
+	third.put(1, 3l);
+	third.save(dir, false, true);
+	RecordHashStore fourth = RecordHashStore.load(dir);
+	Assert.assertEquals(1, fourth.numPrevious());
+	Assert.assertEquals(3l, fourth.previous(1));
+    }
+
+    @Test
+    public void hashesSavedWithoutClosingTheCacheAreNotTrusted() throws IOException{
+	RecordHashStore first = RecordHashStore.load(dir);
+	first.put(1, 11l);
+	first.put(2, 12l);
+	first.save(dir, false, true);
+
+	RecordHashStore second = RecordHashStore.load(dir);
+	Assert.assertEquals(2, second.numPrevious());
+	second.put(1, 21l);
+	second.save(dir, true, false);
+
+	// Nothing is known to be in the cache: every record is rewritten
+	RecordHashStore third = RecordHashStore.load(dir);
+	Assert.assertEquals(0, third.numPrevious());
+	Assert.assertEquals(RecordHash.NO_HASH, third.previous(1));
+	Assert.assertEquals(RecordHash.NO_HASH, third.previous(2));
+	third.put(1, 31l);
+	third.save(dir, false, true);
+	Assert.assertEquals(31l, RecordHashStore.load(dir).previous(1));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void invalidTsnIsRejected(){
+	new RecordHashStore(new RecordHashStore.IntLongMap(16)).put(-1, 1l);
+    }
+
+}
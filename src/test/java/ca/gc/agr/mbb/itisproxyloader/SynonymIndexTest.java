@@ -0,0 +1,116 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import ca.gc.agr.mbb.itisproxy.entities.AcceptedName;
+import ca.gc.agr.mbb.itisproxy.entities.AcceptedNamesList;
+import ca.gc.agr.mbb.itisproxy.entities.Synonym;
+import ca.gc.agr.mbb.itisproxy.entities.SynonymList;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+
+@RunWith(JUnit4.class)
+public class SynonymIndexTest{
+
+    File dir;
+
+    @Before
+    public void makeDir() throws IOException{
+	dir = File.createTempFile("synonym-index", "");
+	dir.delete();
+	dir.mkdir();
+    }
+
+    @After
+    public void deleteDir(){
+	new File(dir, SynonymIndex.FILE_NAME).delete();
+	dir.delete();
+    }
+
+    @Test
+    public void openReadsWhatWasBuilt() throws IOException{
+	// synonym_links rows (tsn, tsn_accepted), in rowid order: 100 has synonyms 300, 200, 250
+	// and 200 again (a duplicate link); 500 is a synonym of two accepted tsns; 400 has none
+	int[] tsns =     {300, 200, 510, 250, 200, 510};
+	int[] accepted = {100, 100, 500, 100, 100, 600};
+	SynonymIndex built = SynonymIndex.of(tsns, accepted);
+	built.write(dir);
+	SynonymIndex opened = SynonymIndex.open(dir);
+
+	for(SynonymIndex index: new SynonymIndex[]{built, opened}){
+	    Assert.assertEquals(6, index.numLinks());
+	    Assert.assertArrayEquals(new int[]{300, 200, 250, 200}, index.synonymsOf(100));
+	    Assert.assertArrayEquals(new int[]{510}, index.synonymsOf(500));
+	    Assert.assertArrayEquals(new int[]{510}, index.synonymsOf(600));
+	    Assert.assertArrayEquals(new int[]{500, 600}, index.acceptedOf(510));
+	    Assert.assertArrayEquals(new int[]{100, 100}, index.acceptedOf(200));
+	    Assert.assertEquals(0, index.synonymsOf(400).length);
+	    Assert.assertEquals(0, index.acceptedOf(400).length);
+	    Assert.assertEquals(0, index.acceptedOf(100).length);
+	}
+    }
+
+    // The lists built in memory from the index and the names are the ones the joins return
+    @Test
+    public void namesInMemoryMatchTheJoins() throws Exception{
+	SyntheticItisGeneratorTest.loadDriver();
+	File db = SyntheticItisGeneratorTest.generate(7l);
+	Connection connection = DriverManager.getConnection("jdbc:sqlite:/" + db.getAbsolutePath());
+	try{
+	    SynonymIndex index = SynonymIndex.build(connection);
+	    SynonymNames names = SynonymNames.build(connection);
+	    Assert.assertTrue(index.numLinks() > 0);
+	    int numSynonyms = 0;
+	    for(int tsn=1; tsn<=SyntheticItisGeneratorTest.NUM_TAXA; tsn++){
+		String t = Integer.toString(tsn);
+		ItisLoader.synonymIndex = null;
+		ItisLoader.synonymNames = null;
+		String accepted = acceptedNames(ItisLoader.makeAcceptedNames(connection, t));
+		String synonyms = synonyms(ItisLoader.makeSynonyms(connection, t));
+		ItisLoader.synonymIndex = index;
+		ItisLoader.synonymNames = names;
+		// No connection: nothing may be queried
+		Assert.assertEquals(t, accepted, acceptedNames(ItisLoader.makeAcceptedNames(null, t)));
+		Assert.assertEquals(t, synonyms, synonyms(ItisLoader.makeSynonyms(null, t)));
+		numSynonyms += ItisLoader.makeSynonyms(null, t).synonyms.size();
+	    }
+	    Assert.assertEquals(index.numLinks(), numSynonyms);
+	}finally{
+	    ItisLoader.synonymIndex = null;
+	    ItisLoader.synonymNames = null;
+	    connection.close();
+	    db.delete();
+	}
+    }
+
+    static final String acceptedNames(final AcceptedNamesList anl){
+	StringBuilder sb = new StringBuilder();
+	for(AcceptedName an: anl.acceptedNames){
+	    sb.append(an.acceptedTsn).append(' ').append(an.acceptedName).append(' ').append(an.author).append('\n');
+	}
+	return sb.toString();
+    }
+
+    static final String synonyms(final SynonymList snl){
+	StringBuilder sb = new StringBuilder();
+	for(Synonym syn: snl.synonyms){
+	    sb.append(syn.tsn).append(' ').append(syn.sciName).append(' ').append(syn.author).append('\n');
+	}
+	return sb.toString();
+    }
+
+    @Test
+    public void noIndexInDir() throws IOException{
+	Assert.assertNull(SynonymIndex.open(dir));
+    }
+
+}
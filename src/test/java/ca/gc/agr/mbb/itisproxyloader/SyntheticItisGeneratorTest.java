@@ -0,0 +1,136 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+
+@RunWith(JUnit4.class)
+public class SyntheticItisGeneratorTest{
+
+    static final int NUM_TAXA = 5000;
+    static final int DEPTH = 12;
+    static final double SYNONYMS = 0.2;
+    // The driver the loader uses, else the one the pom declares for the tests
+    static final String[] DRIVER_NAMES = {ItisLoader.DRIVER_NAME, "org.sqlite.JDBC"};
+
+    // Registers the first SQLite driver found; fails the test if there is none
+    static final void loadDriver() throws Exception{
+	for(String name: DRIVER_NAMES){
+	    try{
+		Class.forName(name);
+		return;
+	    }catch(ClassNotFoundException e){
+	    }
+	}
+	Assert.fail("no SQLite JDBC driver");
+    }
+
+    @Test
+    public void sameSeedSameDatabase() throws Exception{
+	loadDriver();
+	File a = generate(42l);
+	File b = generate(42l);
+	try{
+	    Connection ca = DriverManager.getConnection("jdbc:sqlite:/" + a.getAbsolutePath());
+	    Connection cb = DriverManager.getConnection("jdbc:sqlite:/" + b.getAbsolutePath());
+	    try{
+		Assert.assertEquals(NUM_TAXA, count(ca, "select count(*) from taxonomic_units"));
+		// The default branching fills the tree down to the maximum depth, and no further
+		Assert.assertEquals(DEPTH, maxDepth(ca));
+		int numKingdoms = count(ca, "select count(*) from kingdoms");
+		double synonyms = count(ca, "select count(*) from taxonomic_units where name_usage='" + ExistenceIndex.USAGE_NOT_ACCEPTED + "'")
+		    / (double)(NUM_TAXA - numKingdoms);
+		Assert.assertEquals(SYNONYMS, synonyms, 0.02);
+		// Every taxon but the kingdoms has a parent in the table
+		Assert.assertEquals(0, count(ca, "select count(*) from taxonomic_units where parent_tsn<>0"
+					     + " and parent_tsn not in (select tsn from taxonomic_units)"));
+		Assert.assertEquals(count(ca, "select count(*) from taxonomic_units where name_usage='" + ExistenceIndex.USAGE_NOT_ACCEPTED + "'"),
+				    count(ca, "select count(*) from synonym_links"));
+		Assert.assertTrue(count(ca, "select count(*) from taxonomic_units where rank_id=220") > 0);
+
+		for(String table: new String[]{"vernaculars", "reference_links", "jurisdiction", "comments"}){
+		    Assert.assertEquals(table, count(ca, "select count(*) from " + table), count(cb, "select count(*) from " + table));
+		}
+		Assert.assertEquals(names(ca), names(cb));
+	    }finally{
+		ca.close();
+		cb.close();
+	    }
+	}finally{
+	    a.delete();
+	    b.delete();
+	}
+    }
+
+    static final File generate(final long seed) throws Exception{
+	File f = File.createTempFile("synthetic-itis", ".sqlite");
+	f.delete();
+	SyntheticItisGenerator generator = new SyntheticItisGenerator();
+	generator.seed = seed;
+	generator.numTaxa = NUM_TAXA;
+	generator.depth = DEPTH;
+	generator.synonymRate = SYNONYMS;
+	generator.generate("jdbc:sqlite:/" + f.getAbsolutePath());
+	return f;
+    }
+
+    static final int count(final Connection connection, final String sql) throws SQLException{
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery(sql);
+	try{
+	    rs.next();
+	    return rs.getInt(1);
+	}finally{
+	    ItisLoader.closeAll(statement, rs);
+	}
+    }
+
+    // Levels in the deepest path from a kingdom, kingdoms included
+    static final int maxDepth(final Connection connection) throws SQLException{
+	Map<Integer, Integer> parents = new HashMap<Integer, Integer>();
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery("select tsn, parent_tsn from taxonomic_units");
+	try{
+	    while(rs.next()){
+		parents.put(rs.getInt(1), rs.getInt(2));
+	    }
+	}finally{
+	    ItisLoader.closeAll(statement, rs);
+	}
+	int max = 0;
+	for(Integer tsn: parents.keySet()){
+	    int depth = 0;
+	    for(Integer t=tsn; t != null && t != 0 && depth <= parents.size(); t=parents.get(t)){
+		++depth;
+	    }
+	    max = Math.max(max, depth);
+	}
+	return max;
+    }
+
+    static final String names(final Connection connection) throws SQLException{
+	StringBuilder sb = new StringBuilder();
+	Statement statement = connection.createStatement();
+	ResultSet rs = statement.executeQuery("select tsn, parent_tsn, rank_id, complete_name from taxonomic_units order by tsn");
+	try{
+	    while(rs.next()){
+		sb.append(rs.getInt(1)).append(' ').append(rs.getInt(2)).append(' ').append(rs.getInt(3)).append(' ').append(rs.getString(4)).append('\n');
+	    }
+	}finally{
+	    ItisLoader.closeAll(statement, rs);
+	}
+	return sb.toString();
+    }
+
+}
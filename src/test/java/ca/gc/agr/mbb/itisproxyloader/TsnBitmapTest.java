@@ -0,0 +1,74 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+
+@RunWith(JUnit4.class)
+public class TsnBitmapTest{
+
+    @Test
+    public void containsWhatWasAdded() throws IOException{
+	TsnBitmap bitmap = new TsnBitmap();
+	Set<Integer> added = new HashSet<Integer>();
+	Random random = new Random(42);
+	// Dense run (bitset containers) plus sparse values (array containers)
+	for(int i=0; i<20000; i++){
+	    added.add(i);
+	    bitmap.add(i);
+	    int v = random.nextInt(1000000);
+	    added.add(v);
+	    bitmap.add(v);
+	}
+	Assert.assertEquals(added.size(), bitmap.cardinality());
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	bitmap.write(new DataOutputStream(bytes));
+	TsnBitmap read = TsnBitmap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+	for(int i=0; i<1000000; i++){
+	    Assert.assertEquals(added.contains(i), bitmap.contains(i));
+	    Assert.assertEquals(added.contains(i), read.contains(i));
+	}
+	Assert.assertFalse(bitmap.contains(-1));
+
+	int[] sorted = new int[added.size()];
+	int n = 0;
+	for(Integer v: added){
+	    sorted[n++] = v;
+	}
+	Arrays.sort(sorted);
+	Assert.assertArrayEquals(sorted, bitmap.toArray());
+	Assert.assertArrayEquals(sorted, read.toArray());
+    }
+
+    @Test
+    public void acceptedAndUnaccepted(){
+	ExistenceIndex index = new ExistenceIndex();
+	index.add("180092", "accepted");
+	index.add("202422", "valid");
+	index.add("183833", "not accepted");
+	index.add(null, "accepted");
+
+	Assert.assertEquals(3, index.size());
+	Assert.assertTrue(index.isAccepted("180092"));
+	Assert.assertTrue(index.isAccepted(202422));
+	Assert.assertTrue(index.isUnaccepted("183833"));
+	Assert.assertFalse(index.isAccepted("183833"));
+	Assert.assertFalse(index.exists("1"));
+    }
+
+}
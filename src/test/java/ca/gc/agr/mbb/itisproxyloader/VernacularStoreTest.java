@@ -0,0 +1,95 @@
+package ca.gc.agr.mbb.itisproxyloader;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+
+@RunWith(JUnit4.class)
+public class VernacularStoreTest{
+
+    File dir;
+
+    @Before
+    public void makeDir() throws IOException{
+	dir = File.createTempFile("vernacular-store", "");
+	dir.delete();
+	dir.mkdir();
+    }
+
+    @After
+    public void deleteDir(){
+	new File(dir, VernacularStore.FILE_NAME).delete();
+	dir.delete();
+    }
+
+    // vernaculars rows (tsn, language, vernacular_name) ordered by tsn: 100 has two English names
+    // and a French one, 200 an English one with no language; 150 has none
+    static final VernacularStore store(){
+	String[] strings = {"English", "plants", "French", "plantes", "green plants", "insects"};
+	int[] keys = {100, 200};
+	int[] offsets = {0, 3, 5};
+	int[] postings = {0, 1,   2, 3,   0, 4,
+			  0, 5,   -1, 5};
+	return new VernacularStore(strings, keys, offsets, postings);
+    }
+
+    @Test
+    public void openReadsWhatWasWritten() throws IOException{
+	VernacularStore written = store();
+	written.write(dir);
+	VernacularStore opened = VernacularStore.open(dir);
+
+	for(VernacularStore store: new VernacularStore[]{written, opened}){
+	    Assert.assertEquals(2, store.numTsns());
+	    Assert.assertEquals(5, store.numVernaculars());
+	    Assert.assertEquals(6, store.numStrings());
+
+	    Map<String, List<String>> cm = store.commonNames(100);
+	    Assert.assertEquals(2, cm.size());
+	    Assert.assertEquals(Arrays.asList("plants", "green plants"), cm.get("English"));
+	    Assert.assertEquals(Arrays.asList("plantes"), cm.get("French"));
+	    Assert.assertEquals(Arrays.asList("insects"), store.commonNames(200).get("English"));
+	    Assert.assertEquals(Arrays.asList("insects"), store.commonNames(200).get(null));
+	    Assert.assertTrue(store.commonNames(150).isEmpty());
+
+	    List<String[]> pairs = store.vernaculars(200);
+	    Assert.assertEquals(2, pairs.size());
+	    Assert.assertArrayEquals(new String[]{"English", "insects"}, pairs.get(0));
+	    Assert.assertArrayEquals(new String[]{null, "insects"}, pairs.get(1));
+	    Assert.assertTrue(store.vernaculars(150).isEmpty());
+	}
+    }
+
+    @Test
+    public void commonNamesAreSharedAndUnmodifiable(){
+	VernacularStore store = store();
+	Map<String, List<String>> cm = store.commonNames(100);
+	Assert.assertSame(cm, store.commonNames(100));
+	try{
+	    cm.put("German", null);
+	    Assert.fail("map is modifiable");
+	}catch(UnsupportedOperationException e){
+	}
+	try{
+	    cm.get("English").add("trees");
+	    Assert.fail("list is modifiable");
+	}catch(UnsupportedOperationException e){
+	}
+    }
+
+    @Test
+    public void noStoreInDir() throws IOException{
+	Assert.assertNull(VernacularStore.open(dir));
+    }
+
+}